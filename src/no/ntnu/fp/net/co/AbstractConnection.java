@@ -6,17 +6,23 @@ package no.ntnu.fp.net.co;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.ConnectException;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Timer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.cl.KtnDatagram.Flag;
-import no.ntnu.fp.net.co.ClSocketReceiver;
 import no.ntnu.fp.net.co.Connection;
 
 /**
@@ -38,7 +44,11 @@ public abstract class AbstractConnection implements Connection {
      * the timeout. Setting RETRANSMIT too low will result in a lot of traffic
      * and duplicate packets because of the delays in A2. Note: Low values of
      * RETRANSMIT will generate duplicate packets independently of the setting
-     * for duplicate packets in the configuration for A2!
+     * for duplicate packets in the configuration for A2!<br>
+     * <br>
+     * This is only the initial value. Once ACKs arrive, the time between
+     * retransmissions follows the measured round trip time, see
+     * {@link #getRetransmitTimeout()}.
      */
     protected final static int RETRANSMIT = 800;
 
@@ -47,30 +57,255 @@ public abstract class AbstractConnection implements Connection {
      * the case of many errors, while setting it too low can cause failure of
      * operation because of the delays in A2. It is now set to three times the
      * {@link #RETRANSMIT} value, for a total of 4 possible transmissions before
-     * timing out.
+     * timing out.<br>
+     * <br>
+     * As with RETRANSMIT, this is the initial value, see
+     * {@link #getReceiveTimeout()}.
      */
     protected static int TIMEOUT = 3 * RETRANSMIT + (RETRANSMIT / 2);
 
     /**
-     * To prevent more than one thread to concurrently execute certain parts of
-     * doReceive(). DO NOT alter the value of this variable unless you KNOW what
-     * you are doing, as this may hang the implementation or cause
-     * BindExceptions in A2 - you are warned!
+     * Default number of data packets that may be in flight at the same time,
+     * see {@link #setSendWindow(int, SendWindow.Mode)}.
+     */
+    protected final static int DEFAULT_WINDOW_SIZE = 8;
+
+    /**
+     * Number of sequence numbers ahead of {@link #nextExpectedSeqNo} that will
+     * be buffered when data packets arrive out of order. Packets further ahead
+     * are dropped without being acked, and will be retransmitted by the sender.
+     * The size of a {@link ReplayWindow}.
+     */
+    protected final static int REORDER_LIMIT = ReplayWindow.SIZE;
+
+    /**
+     * Maximum number of characters of a message sent in one data packet.
+     * Longer messages are split into fragments, see
+     * {@link #sendFragmented(String)}, so that a damaged or lost packet only
+     * costs the retransmission of one fragment.
+     */
+    protected final static int MAX_FRAGMENT = 1024;
+
+    /**
+     * Maximum number of received packets waiting in each of the internal and
+     * external queues. Packets arriving when the queue is full are dropped,
+     * and will be retransmitted by the sender.
+     */
+    protected final static int QUEUE_CAPACITY = 256;
+
+    /**
+     * Longest time in milliseconds the ACK for received data is held back in
+     * delayed-ACK mode, see {@link #setDelayedAck(boolean)}. Must be well below
+     * the smallest retransmission timeout of the sender, see
+     * {@link RttEstimator#MIN_RTO}.
+     */
+    protected final static int ACK_DELAY = 40;
+
+    /**
+     * Number of data packets received in sequence after which a delayed ACK is
+     * sent at once, see {@link #setDelayedAck(boolean)}.
+     */
+    protected final static int ACK_EVERY = 2;
+
+    /**
+     * Time in milliseconds the ACK for received data is held back when
+     * delayed ACKs are off, so that it can ride on a reply from the
+     * application instead of being sent on its own, see
+     * {@link #acknowledgeData(KtnDatagram)}.
+     */
+    protected final static int PIGGYBACK_DELAY = 10;
+
+    /**
+     * Number of packets after the ack number a selective ACK can list, see
+     * {@link #sendDataAck()}. The connectionless layer clears the payload of
+     * every ACK packet, so the bitmap travels in the sequence number field,
+     * which ACKs do not otherwise use. Sequence numbers are never negative,
+     * leaving 31 bits: the low SACK_BITS of them hold the bitmap, and the
+     * rest the receive window, see {@link #RECEIVE_BUFFER}.
+     */
+    protected final static int SACK_BITS = 24;
+
+    /**
+     * @param seq
+     *            a sequence or ack number.
+     * @param n
+     *            a number of packets, may be negative.
+     * @return the sequence number n packets after seq. Sequence numbers go
+     *         from 0 to {@link Integer#MAX_VALUE} and then start over at 0, as
+     *         {@link KtnDatagram} turns a negative number n into n -
+     *         {@link Integer#MIN_VALUE}.
+     */
+    static int seqAfter(int seq, int n) {
+        return (seq + n) & Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param from
+     *            a sequence or ack number.
+     * @param to
+     *            another one, less than 2^30 packets before or after from.
+     * @return the number of packets from from to to: negative if to comes
+     *         first, also if the sequence numbers have started over at 0 in
+     *         between, see {@link #seqAfter(int, int)}.
+     */
+    static int seqDistance(int from, int to) {
+        return (to - from) << 1 >> 1;
+    }
+
+    /**
+     * Number of received data packets a connection holds for the application
+     * before it stops accepting more: packets waiting for the packets before
+     * them, and messages not yet read. Every ACK tells the sender how many
+     * more packets there is room for (the receive window), so that a fast
+     * sender waits for a slow reader instead of filling its memory. The
+     * window travels above the selective ACK bitmap, plus one, so that 0
+     * means that an ACK carries no window. Must be below
+     * 2^(31 - {@link #SACK_BITS}) - 1.
+     * 
+     * @see #receiveWindowOpened()
+     */
+    protected final static int RECEIVE_BUFFER = 64;
+
+    /**
+     * Default longest time in milliseconds a small message is held back in
+     * coalescing mode, waiting for more messages to send with it, see
+     * {@link #setNoDelay(boolean)}.
+     */
+    protected final static int COALESCE_DELAY = 20;
+
+    /**
+     * Default milliseconds of silence from the other side before a keepalive
+     * probe is sent, see {@link #setKeepAlive(int, int)}.
+     */
+    public final static int DEFAULT_KEEPALIVE_INTERVAL = 10000;
+
+    /**
+     * Default number of unanswered keepalive probes after which the other
+     * side is taken to be gone, see {@link #setKeepAlive(int, int)}.
+     */
+    public final static int DEFAULT_KEEPALIVE_PROBES = 5;
+
+    /**
+     * The stream of the messages sent and received with the methods of
+     * {@link Connection}. Other streams are opened with
+     * {@link ConnectionImpl#openStream()}.
+     */
+    protected final static int MAIN_STREAM = 0;
+
+    /**
+     * True while this connection is registered with the
+     * {@link PacketDemultiplexer} for its port. Only changed by
+     * {@link #startReceiving()} and {@link #stopReceiving()}.
+     */
+    private final AtomicBoolean isReceiving = new AtomicBoolean(false);
+
+    /**
+     * Unhandled internal packets (e.g. ACK), put here by
+     * {@link #deliver(KtnDatagram, boolean)}. Waited on by
+     * {@link #receiveAck()} and {@link #receivePacket(boolean)} for internal
+     * packets.
+     */
+    private PacketQueue internalQueue;
+
+    /**
+     * Unhandled external (application-destined) packets, put here by
+     * {@link #deliver(KtnDatagram, boolean)}. Waited on by
+     * {@link #receivePacket(boolean)} for external packets.
+     */
+    private PacketQueue externalQueue;
+
+    /**
+     * Data packets sent with {@link #sendDataPacketWindowed(KtnDatagram)} that
+     * have not been acked yet.
+     */
+    private SendWindow sendWindow;
+
+    /**
+     * Serialises senders using the send window. Not the monitor of this
+     * instance, as that is released while waiting for ACKs.
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /**
+     * Received data packets from {@link #nextExpectedSeqNo} on. Packets that
+     * have been taken out of order by {@link #nextBufferedPacket()} are still
+     * marked as arrived until the packets before them have been taken, so that
+     * they are still acked and not taken again. See
+     * {@link #bufferDataPacket(KtnDatagram)}.
+     */
+    private ReplayWindow replayWindow;
+
+    /**
+     * The number of the next fragment on each stream other than the main
+     * stream, see {@link Segment#onStream(int, int)}. Guarded by
+     * {@link #sendLock}.
+     */
+    private final Map<Integer, Integer> streamSeqs = new HashMap<Integer, Integer>();
+
+    /** True if ACKs for received data may be delayed and coalesced. */
+    private boolean delayedAck;
+
+    /** Number of data packets received since the last ACK was sent. */
+    private int unackedPackets;
+
+    /** The receive window sent in the last ACK, see {@link #RECEIVE_BUFFER}. */
+    private int advertisedWindow;
+
+    /** Sends the delayed ACK, if one is being held back. */
+    private TimerWheel.Timeout ackTimeout;
+
+    /**
+     * False if small messages are coalesced, see {@link #setNoDelay(boolean)}.
+     * This and the other coalescing fields are guarded by {@link #sendLock}.
+     */
+    private boolean noDelay = true;
+
+    /** Longest time in milliseconds a message is held back when coalescing. */
+    private int coalesceDelay = COALESCE_DELAY;
+
+    /** Length of a batch that is sent at once when coalescing. */
+    private int coalesceSize = MAX_FRAGMENT;
+
+    /** Messages held back by {@link #sendCoalesced(String)}. */
+    private final List<String> coalesced = new ArrayList<String>();
+
+    /**
+     * Milliseconds of silence before a keepalive probe is sent, 0 if
+     * keepalive is off, see {@link #setKeepAlive(int, int)}.
      */
-    private boolean isReceiving;
+    private volatile int keepAliveInterval;
+
+    /** Number of unanswered probes after which the other side is gone. */
+    private volatile int keepAliveProbes;
+
+    /** Runs the next keepalive check, see {@link #checkAlive()}. */
+    private TimerWheel.Timeout keepAliveTimeout;
+
+    /** When the last packet from the other side arrived. */
+    private volatile long lastHeard;
+
+    /** True once the other side has stopped answering keepalive probes. */
+    private volatile boolean peerLost;
+
+    /** Length of {@link #coalesced} as a batch, see {@link Segment#join(List, int)}. */
+    private int coalescedLength;
 
     /**
-     * Unhandled internal packets. Packets are put in this queue when waiting
-     * for a data packet and receiving an internal packet (e.g. ACK).
+     * Sends the messages held back, if there are any. Set without
+     * {@link #sendLock} when the task has to try again, see
+     * {@link #scheduleCoalesced(int)}.
      */
-    private List<KtnDatagram> internalQueue;
+    private volatile TimerWheel.Timeout coalesceTimeout;
 
     /**
-     * Unhandled external (application-destined) packets. Packets are put in
-     * this queue when waiting for internal packets (e.g. ACK) and receiving a
-     * data packet.
+     * Messages not yet (fully) in the send window, per stream in the order
+     * they were sent, see {@link #sendQueued(int, String)}. Only taken from
+     * while holding {@link #sendLock}, but added to and read without it.
      */
-    private List<KtnDatagram> externalQueue;
+    private final StreamScheduler<QueuedMessage> queuedMessages = new StreamScheduler<QueuedMessage>();
+
+    /** True while a timer is set to call {@link #advanceSendWindow()}. */
+    private final AtomicBoolean queuedRetry = new AtomicBoolean(false);
 
     /**
      * Identifies the state of the connection.
@@ -87,17 +322,32 @@ public abstract class AbstractConnection implements Connection {
     protected KtnDatagram lastDataPacketSent;
     /** The current sequence number used in packets to be sent. */
     protected int nextSequenceNo;
+    /**
+     * Sequence number of the next data packet to hand to the application. Must
+     * be set to the remote side's initial sequence number + 1 when the
+     * connection is established.
+     */
+    protected int nextExpectedSeqNo;
+
+    /** Round trip time estimate, source of the retransmission timeout. */
+    protected RttEstimator rttEstimator;
 
     /** The sequence number used in disconnection. */
     protected int disconnectSeqNo;
      /** If a FIN has been received, it is stored in disconnectRequest. */
-     protected KtnDatagram disconnectRequest;
+     protected volatile KtnDatagram disconnectRequest;
 
     /** Initialize variables to default values. */
     public AbstractConnection() {
-        internalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
-        externalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
-        isReceiving = false;
+        internalQueue = new PacketQueue(QUEUE_CAPACITY);
+        externalQueue = new PacketQueue(QUEUE_CAPACITY);
+        rttEstimator = new RttEstimator(RETRANSMIT);
+        sendWindow = new SendWindow(DEFAULT_WINDOW_SIZE, SendWindow.Mode.SELECTIVE_REPEAT,
+                rttEstimator, this, new AimdController());
+        replayWindow = new ReplayWindow();
+        delayedAck = false;
+        unackedPackets = 0;
+        advertisedWindow = RECEIVE_BUFFER;
         nextSequenceNo = (int)(Math.random() * 10000 + 1);
         disconnectRequest = null;
         lastDataPacketSent = null;
@@ -124,7 +374,7 @@ public abstract class AbstractConnection implements Connection {
      * <li>Local port
      * <li>Flag to NONE.
      * <li>Sequence no.
-     * <li>Payload.
+     * <li>Payload, encoded as a {@link Segment}.
      * </ol>
      * 
      * @param payload
@@ -132,8 +382,58 @@ public abstract class AbstractConnection implements Connection {
      * @return Initialised datagram.
      */
     protected KtnDatagram constructDataPacket(String payload) {
+        return constructDataPacket(payload, false);
+    }
+
+    /**
+     * Construct a datagram with a fragment of a message as payload, see
+     * {@link #constructDataPacket(String)}.
+     * 
+     * @param payload
+     *            Payload for packet, can not be null.
+     * @param more
+     *            true if more fragments of the message follow this one.
+     * @return Initialised datagram.
+     */
+    protected KtnDatagram constructDataPacket(String payload, boolean more) {
+        return constructDataPacket(payload, more, false);
+    }
+
+    /**
+     * Construct a datagram with a fragment of a message, or of a batch of
+     * messages (see {@link #sendCoalesced(String)}), as payload.
+     * 
+     * @param payload
+     *            Payload for packet, can not be null.
+     * @param more
+     *            true if more fragments of the message follow this one.
+     * @param batch
+     *            true if the message is a batch of messages.
+     * @return Initialised datagram.
+     */
+    protected KtnDatagram constructDataPacket(String payload, boolean more, boolean batch) {
         if (payload == null) throw new IllegalArgumentException("Payload can not be null.");
+        return constructDataPacket(new Segment(payload, more, batch));
+    }
+
+    /**
+     * Construct a datagram with a fragment of a binary message as payload.
+     * The bytes are copied straight into the payload, without serialization.
+     * 
+     * @param src
+     *            the message, from its position. The position is moved past
+     *            the bytes taken.
+     * @param length
+     *            the number of bytes to take.
+     * @param more
+     *            true if more fragments of the message follow this one.
+     * @return Initialised datagram.
+     */
+    protected KtnDatagram constructDataPacket(ByteBuffer src, int length, boolean more) {
+        return constructDataPacket(new Segment(src, length, more));
+    }
 
+    private KtnDatagram constructDataPacket(Segment segment) {
         KtnDatagram packet = new KtnDatagram();
         packet.setDest_port(remotePort);
         packet.setDest_addr(remoteAddress);
@@ -141,7 +441,7 @@ public abstract class AbstractConnection implements Connection {
         packet.setSrc_port(myPort);
         packet.setFlag(Flag.NONE);
         packet.setSeq_nr(nextSequenceNo++);
-        packet.setPayload(payload);
+        segment.writeTo(packet);
 
         return packet;
     }
@@ -155,7 +455,10 @@ public abstract class AbstractConnection implements Connection {
      * that if you want to set values to something else than the default, you
      * must construct the packet manually or alter the returned object.<br>
      * <br>
-     * This method also increments the sequenceNo.<br>
+     * This method also increments the sequenceNo, except for ACK packets: a
+     * pure ACK carries the sequence number of the next packet to be sent, so
+     * that data packets are numbered consecutively and the receiver can put
+     * them back in order.<br>
      * <br>
      * This method sets the following fields:
      * <ol>
@@ -164,7 +467,8 @@ public abstract class AbstractConnection implements Connection {
      * <li>Local address
      * <li>Local port
      * <li>Flag
-     * <li>Sequence no.
+     * <li>Sequence no. (an empty selective ACK bitmap for ACKs, see
+     * {@link #SACK_BITS})
      * <li>Payload to null.
      * </ol>
      * 
@@ -182,7 +486,7 @@ public abstract class AbstractConnection implements Connection {
         packet.setSrc_addr(myAddress);
         packet.setSrc_port(myPort);
         packet.setFlag(flag);
-        packet.setSeq_nr(nextSequenceNo++);
+        packet.setSeq_nr(flag == Flag.ACK ? 0 : nextSequenceNo++);
         packet.setPayload(null);
 
         return packet;
@@ -191,28 +495,29 @@ public abstract class AbstractConnection implements Connection {
     /**
      * Sends a packet. Hides the underlying ClSocket from the students, and is
      * there to clearify that there are not only the other send-methods that
-     * exists.
+     * exists. The packet goes over the {@link Transport} in use.
      * 
      * @param packet
      *            The {@link KtnDatagram} to send.
      * @throws IOException
      *             If thrown by the underlying
-     *             {@link ClSocket#send(KtnDatagram)}.
+     *             {@link PacketSocket#send(KtnDatagram)}.
      * @throws ClException
      *             If thrown by the underlying
-     *             {@link ClSocket#send(KtnDatagram)}.
+     *             {@link PacketSocket#send(KtnDatagram)}.
      * @see #sendDataPacketWithRetransmit(KtnDatagram)
      * @see #sendAck(KtnDatagram, boolean)
-     * @see ClSocket#send(KtnDatagram)
+     * @see PacketSocket#send(KtnDatagram)
      */
     protected synchronized void simplySendPacket(KtnDatagram packet) throws ClException, IOException {
-        new ClSocket().send(packet);
+        Transport.getCurrent().open().send(packet);
     }
 
     /**
      * Send a data packet and wait for ack in one operation. This method employs
      * a timer that resends the packet until an ack is received (or the timeout
-     * is reached). <br>
+     * is reached). The time between retransmissions starts at
+     * {@link #getRetransmitTimeout()} and doubles for every retransmission. <br>
      * <br>
      * This method sets the {@link #lastDataPacketSent} variable. This method
      * can only be used in the Established state, see {@link State}.
@@ -223,7 +528,7 @@ public abstract class AbstractConnection implements Connection {
      *         null)
      * @throws IOException
      *             thrown if unable to send packet.
-     * @see no.ntnu.fp.net.cl.ClSocket#send(KtnDatagram)
+     * @see PacketSocket#send(KtnDatagram)
      */
     protected synchronized KtnDatagram sendDataPacketWithRetransmit(KtnDatagram packet)
             throws IOException {
@@ -232,300 +537,1513 @@ public abstract class AbstractConnection implements Connection {
         if (packet.getFlag() != Flag.NONE)
             throw new IllegalArgumentException("Packet must be a data packet.");
         /*
-         * Algorithm: 1 Start a timer used to resend the packet with a specified
-         * interval, and that immediately starts trying (sending the first
-         * packet as well as the retransmits). 2 Wait for the ACK using
-         * receiveAck(). 3 Cancel the timer. 4 Return the ACK-packet.
+         * Algorithm: 1 Send the packet, and start a timer on the shared
+         * TimerWheel that resends it with a specified interval. 2 Wait for the
+         * ACK using receiveAck(). 3 Cancel the timer. 4 Update the RTT
+         * estimate. 5 Return the ACK-packet.
          */
 
         lastDataPacketSent = packet;
 
-        // Create a timer that sends the packet and retransmits every
-        // RETRANSMIT milliseconds until cancelled.
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new SendTimer(new ClSocket(), packet), 0, RETRANSMIT);
+        // Send the packet, and retransmit it with exponential backoff until
+        // cancelled.
+        SendTimer sender = new SendTimer(Transport.getCurrent().open(), packet);
+        Retransmission retransmission = new Retransmission(sender);
+        sender.run();
+        retransmission.schedule();
 
         KtnDatagram ack = receiveAck();
-        timer.cancel();
+        retransmission.cancel();
+
+        // Karn's rule: an ack for a retransmitted packet is not a valid sample.
+        if (ack != null && ack.getAck() == packet.getSeq_nr() && sender.getTries() == 1) {
+            rttEstimator.addSample(System.currentTimeMillis() - sender.getLastSent());
+        }
 
         return ack;
     }
 
     /**
-     * Send an ack or synack for the given packet. <br>
-     * If the send fails, there is no retransmission of the ack-packet: Just
-     * wait for the other side to retransmit the original packet.<br>
-     * <br>
-     * This method relies on
-     * {@link #constructInternalPacket(Flag)}, i.e. myAddress,
-     * myPort, remoteAddress, remotePort and sequenceNo must be initialized
-     * properly.
-     * 
-     * @param packetToAck
-     *            The packet that should be acked
-     * @param synAck
-     *            true if a synack should be sent, false if a regular ack, see
-     *            {@link KtnDatagram.Flag}.
-     * @throws ConnectException
-     *             Thrown if unable to send packet.
-     * @see #constructInternalPacket(Flag)
+     * Retransmits a packet on the shared {@link TimerWheel} until cancelled.
+     * Every retransmission backs off the retransmission timeout, and schedules
+     * the next one.
      */
-    protected synchronized void sendAck(KtnDatagram packetToAck, boolean synAck)
-            throws IOException, ConnectException {
-    
-        /*
-         * Algorithm: Generate a new ack packet based on the packet given as
-         * input Try to send the ack Catch a ConnectException if the sending
-         * failed - and write this to the Log.
-         */
-    
-        int tries = 3;
-        boolean sent = false;
-    
-        KtnDatagram ackToSend = constructInternalPacket(synAck ? Flag.SYN_ACK : Flag.ACK);
-        ackToSend.setAck(packetToAck.getSeq_nr());
-    
-        // Send the ack, trying at most `tries' times.
-        Log.writeToLog(ackToSend, "Sending Ack: " + ackToSend.getAck(), "AbstractConnection");
-    
-        do {
-            try {
-                new ClSocket().send(ackToSend);
-                sent = true;
-            }
-            catch (ClException e) {
-                Log.writeToLog(ackToSend, "CLException: Could not establish a "
-                        + "connection to the specified address/port!", "AbstractConnection");
+    private class Retransmission implements Runnable {
+
+        private final SendTimer sender;
+        private TimerWheel.Timeout timeout;
+        private boolean cancelled;
+
+        Retransmission(SendTimer sender) {
+            this.sender = sender;
+            cancelled = false;
+        }
+
+        /** Schedule the next retransmission. */
+        synchronized void schedule() {
+            if (!cancelled) {
+                timeout = TimerWheel.getShared().schedule(this, getRetransmitTimeout(),
+                        AbstractConnection.this);
             }
-            catch (ConnectException e) {
-                // Silently ignore: Maybe recipient was processing and didn't
-                // manage to call receiveAck() before we were ready to send.
-                try {
-                    Thread.sleep(100);
-                }
-                catch (InterruptedException ex) {
-                }
+        }
+
+        /** Stop retransmitting. */
+        synchronized void cancel() {
+            cancelled = true;
+            if (timeout != null) timeout.cancel();
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (cancelled) return;
             }
+            rttEstimator.backoff();
+            sender.run();
+            schedule();
         }
-        while (!sent && (tries-- > 0));
-    
-        if (!sent) {
-            nextSequenceNo--;
-            throw new ConnectException("Unable to send ACK.");
+    }
+
+    /**
+     * @return the number of retransmission and other timers this connection
+     *         has pending on the shared {@link TimerWheel}.
+     */
+    protected int getPendingTimers() {
+        return TimerWheel.getShared().getPending(this);
+    }
+
+    /**
+     * The current time to wait for an ack before retransmitting. Starts at
+     * {@link #RETRANSMIT}, and then follows the measured round trip time.
+     * 
+     * @return retransmission timeout in milliseconds.
+     * @see RttEstimator
+     */
+    protected int getRetransmitTimeout() {
+        return rttEstimator.getRto();
+    }
+
+    /**
+     * The current time to wait for an internal packet before giving up. Keeps
+     * the ratio between {@link #TIMEOUT} and {@link #RETRANSMIT}, so that
+     * there is time for a few retransmissions.
+     * 
+     * @return receive timeout in milliseconds.
+     */
+    protected int getReceiveTimeout() {
+        return (int)((long)getRetransmitTimeout() * TIMEOUT / RETRANSMIT);
+    }
+
+    /**
+     * Configure the send window used by
+     * {@link #sendDataPacketWindowed(KtnDatagram)}. A window of size 1 gives
+     * stop-and-wait behaviour. Can only be changed while no data packets are in
+     * flight.
+     * 
+     * @param size
+     *            maximum number of unacknowledged data packets, at least 1.
+     * @param mode
+     *            how lost packets are retransmitted, see {@link SendWindow.Mode}.
+     * @throws IllegalStateException
+     *             if there are packets in flight.
+     */
+    public void setSendWindow(int size, SendWindow.Mode mode) {
+        sendLock.lock();
+        try {
+            if (!sendWindow.isEmpty())
+                throw new IllegalStateException("Can not resize the window with packets in flight.");
+            sendWindow.close();
+            sendWindow = new SendWindow(size, mode, rttEstimator, this,
+                    sendWindow.getController());
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Choose the congestion control of the connection, which limits the
+     * number of packets in flight below the size of the send window. An
+     * {@link AimdController} by default; other algorithms can be plugged in
+     * to compare them. Each connection needs its own controller.
+     * 
+     * @param controller
+     *            the congestion control.
+     * @see #setSendWindow(int, SendWindow.Mode)
+     */
+    public void setCongestionController(CongestionController controller) {
+        sendLock.lock();
+        try {
+            sendWindow.setController(controller);
+        }
+        finally {
+            sendLock.unlock();
         }
     }
 
     /**
-     * Receives a packet from the connectionless layer. This function handles
-     * concurrency issues related to that only one thread may listen to a port
-     * at the same time.<br>
+     * Send a data packet without waiting for its ack. Up to the window size
+     * (see {@link #setSendWindow(int, SendWindow.Mode)}) packets can be in
+     * flight at once. This method only blocks when the window is full, and then
+     * processes incoming acks using {@link #receiveAck()} until there is room
+     * for the packet. An ACK held back for data received from the other side
+     * is sent on the packet, see {@link #acknowledgeData(KtnDatagram)}. <br>
      * <br>
-     * It calls {@link #isValid(KtnDatagram)} on FIN-packets in ESTABLISHED
-     * state, before an EOFException is thrown.
+     * This method sets the {@link #lastDataPacketSent} variable. This method
+     * can only be used in the Established state, or in Close_wait to send the
+     * data left when the other side closed, see {@link State}.
      * 
-     * @param internal
-     *            true if you want to receive non-external packet, i.e. not a
-     *            packet with data intended for the application. False
-     *            otherwise.
-     * @return A received datagram
+     * @param packet
+     *            the packet to be sent.
      * @throws IOException
-     *             If the underlying connectionless layer throws an IOException.
+     *             if an earlier packet in the window was never acked.
      * @throws EOFException
-     *             If a packet with a FIN-flag was received in ESTABLISHED
-     *             state.
+     *             if a FIN-packet was received while waiting for room in the
+     *             window.
+     * @see #flushSendWindow()
      */
-    protected KtnDatagram receivePacket(boolean internal) throws IOException, EOFException {
-        /*
-         * Acquire monitor for this instance, and see if another thread runs
-         * receive on our port. If so, see if that thread gets the packet that
-         * was meant for us.
-         */
-        synchronized (this) {
-            long before, after;
-    
-            before = System.currentTimeMillis();
-            while (isReceiving) {
-                try {
-                    if (internal)
-                        wait(TIMEOUT); // wait with timeout
-                    else wait(); // wait (potentially) forever
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-                after = System.currentTimeMillis();
-    
-                // If a packet for us has arrived, return it.
-                if (internal) {
-                    // Case 1: Internal (protocol) caller, check internalQueue
-                    if (!internalQueue.isEmpty()) {
-                        return internalQueue.remove(0);
-                    }
-                    // If no packet arrived, see if timeout has expired.
-                    else if ((after - before) > TIMEOUT) {
-                        return null;
-                    }
-                }
-                else {
-                    // Case 2: Non-internal (application) caller, check
-                    // externalQueue
-                    if (!externalQueue.isEmpty()) {
-                        return externalQueue.remove(0);
-                    }
-                    // else try loop again unless connection is free
-                }
+    protected void sendDataPacketWindowed(KtnDatagram packet) throws IOException {
+        if (state != State.ESTABLISHED && state != State.CLOSE_WAIT)
+            throw new IllegalStateException("Should only be used in ESTABLISHED or CLOSE_WAIT state.");
+        if (packet.getFlag() != Flag.NONE)
+            throw new IllegalArgumentException("Packet must be a data packet.");
+
+        sendLock.lock();
+        try {
+            processQueuedAcks();
+            while (sendWindow.isFull()) {
+                sendWindow.checkFailure();
+                handleAck(receiveAck());
             }
-    
-            // When we get here, this thread has not got its packet, and it's
-            // allowed to enter the listening part of doReceive().
-            isReceiving = true;
+            piggybackAck(packet);
+            lastDataPacketSent = packet;
+            sendWindow.add(packet);
         }
-    
-        Log.writeToLog("Waiting for incoming packet in doReceive()", "AbstractConnection");
-    
-        KtnDatagram incomingPacket;
-    
-        /*
-         * Waiting for internal and external packets should be handled
-         * differently. Waiting for internal packets should time out.
-         */
-        if (internal) {
-            // We are waiting for an internal packet, ie. a packet with a flag
-            long start = System.currentTimeMillis();
-            while (System.currentTimeMillis() - start < TIMEOUT) {
-                ClSocketReceiver receiver = new ClSocketReceiver(myPort);
-                receiver.start();
-                // Wait at most what is left of the TIMEOUT period for thread to
-                // die, but never less than 1 millisecond
-                try {
-                    long timeout  = TIMEOUT - (System.currentTimeMillis() - start);
-                    receiver.join(Math.max(timeout, 1));
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-    
-                receiver.stopReceive();
-                incomingPacket = receiver.getPacket();
-                if (incomingPacket == null) {
-                    // No packet was received
-                    synchronized (this) {
-                        isReceiving = false;
-                        notifyAll();
-                        return null;
-                    }
-                }
-                else {
-                    // We have a packet
-                    if (incomingPacket.getFlag() != Flag.NONE) {
-                        // Packet is internal
-                        Log.writeToLog("Received an internal packet in doReceive",
-                                "AbstractConnection");
-    
-                        if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                            // A FIN-packet has arrived in established state,
-                            // stop receiving and throw and exception
-                            disconnectRequest = incomingPacket;
-                            synchronized (this) {
-                                isReceiving = false;
-                                notifyAll();
-                                throw new EOFException("FIN packet received.");
-                            }
-                        }
-                        else {
-                            // Not a FIN packet in established state, return it
-                            // normally.
-                            synchronized (this) {
-                                isReceiving = false;
-                                notifyAll();
-                                return incomingPacket;
-                            }
-                        }
-                    }
-                    else {
-                        // Packet was meant for the application, continue
-                        // listening until timeout.
-                        Log.writeToLog("Received an external packet in doReceive",
-                                "AbstractConnection");
-    
-                        synchronized (this) {
-                            synchronized (this) {
-                                externalQueue.add(incomingPacket);
-                                notifyAll();
-                            }
-                        }
-                    }
-                }
-            }
-            // We have now waited at least TIMEOUT milliseconds, still no
-            // packet.
-            synchronized (this) {
-                isReceiving = false;
-                notifyAll();
-                return null;
-            }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Send a message from the application through the send window, split into
+     * fragments of at most {@link #MAX_FRAGMENT} characters. The fragments
+     * are joined again by the receiver (see {@link Segment}). <br>
+     * <br>
+     * The fragments take turns with the messages sent on other streams at the
+     * same time, see {@link #sendQueued(int, String)}: the calling thread puts
+     * fragments of every stream in the window until its own message is in,
+     * unless another thread is already doing so.
+     * 
+     * @param message
+     *            the message to send, can not be null.
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     * @throws EOFException
+     *             if a FIN-packet was received while waiting for room in the
+     *             window.
+     * @see #sendDataPacketWindowed(KtnDatagram)
+     */
+    protected void sendFragmented(String message) throws IOException {
+        sendFragmented(MAIN_STREAM, message);
+    }
+
+    /**
+     * Send a message on a stream, see {@link #sendFragmented(String)}.
+     * 
+     * @param stream
+     *            the stream.
+     * @param message
+     *            the message to send, can not be null.
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     */
+    protected void sendFragmented(int stream, String message) throws IOException {
+        if (message == null) throw new IllegalArgumentException("Payload can not be null.");
+        awaitQueued(queue(new QueuedMessage(stream, message, null)));
+    }
+
+    /**
+     * Send a binary message from the application through the send window,
+     * split into fragments of at most {@link #MAX_FRAGMENT} bytes, like
+     * {@link #sendFragmented(String)}. The bytes are not serialized or turned
+     * into a String on the way, see {@link Segment}. The receiver gets the
+     * message from {@link ConnectionImpl#receive(ByteBuffer)}.
+     * 
+     * @param message
+     *            the message to send: the bytes from its position to its
+     *            limit. The position is moved to the limit.
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     * @throws EOFException
+     *             if a FIN-packet was received while waiting for room in the
+     *             window.
+     */
+    protected void sendFragmented(ByteBuffer message) throws IOException {
+        sendFragmented(MAIN_STREAM, message);
+    }
+
+    /**
+     * Send a binary message on a stream, see {@link #sendFragmented(ByteBuffer)}.
+     * 
+     * @param stream
+     *            the stream.
+     * @param message
+     *            the message to send, from its position to its limit.
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     */
+    protected void sendFragmented(int stream, ByteBuffer message) throws IOException {
+        if (message == null) throw new IllegalArgumentException("Payload can not be null.");
+        awaitQueued(queue(new QueuedMessage(stream, null, message)));
+    }
+
+    /**
+     * End a stream: after the messages sent on it so far, the receiver is told
+     * that no more will follow, see {@link Segment#end()}.
+     * 
+     * @param stream
+     *            a stream other than {@link #MAIN_STREAM}.
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     */
+    protected void endStream(int stream) throws IOException {
+        if (stream == MAIN_STREAM) throw new IllegalArgumentException("Can not end the main stream.");
+        awaitQueued(queue(new QueuedMessage(stream, null, null)));
+    }
+
+    /**
+     * Send a message, or a batch of messages, as fragments. The caller must
+     * hold {@link #sendLock}.
+     */
+    private void sendFragments(String message, boolean batch) throws IOException {
+        int start = 0;
+        do {
+            int end = Math.min(message.length(), start + MAX_FRAGMENT);
+            boolean more = end < message.length();
+            sendDataPacketWindowed(constructDataPacket(message.substring(start, end), more, batch));
+            start = end;
+        }
+        while (start < message.length());
+    }
+
+    /**
+     * Choose whether small messages are sent at once, or coalesced: held back
+     * for a short while and sent together with the messages that follow in
+     * one data packet, see {@link #sendCoalesced(String)}. Coalescing saves a
+     * packet, a checksum and an ACK per message for applications that send
+     * many short messages, at the cost of latency. No delay (coalescing off)
+     * by default. Turning it off sends the messages held back at once.
+     * 
+     * @param noDelay
+     *            true to send every message at once, false to coalesce.
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     * @see #setCoalescing(int, int)
+     */
+    public void setNoDelay(boolean noDelay) throws IOException {
+        sendLock.lock();
+        try {
+            this.noDelay = noDelay;
+            if (noDelay) flushCoalesced();
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if every message is sent at once, see
+     *         {@link #setNoDelay(boolean)}.
+     */
+    public boolean isNoDelay() {
+        sendLock.lock();
+        try {
+            return noDelay;
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Set the thresholds for coalescing, see {@link #setNoDelay(boolean)}. A
+     * message is held back for at most the given delay, and messages are sent
+     * at once when they add up to the given size. Messages of that size or
+     * longer are never held back.
+     * 
+     * @param delay
+     *            longest time in milliseconds a message is held back, default
+     *            {@link #COALESCE_DELAY}.
+     * @param size
+     *            length of a batch that is sent at once, at most (and by
+     *            default) {@link #MAX_FRAGMENT}.
+     */
+    public void setCoalescing(int delay, int size) {
+        if (delay < 1) throw new IllegalArgumentException("Delay must be at least 1 ms.");
+        if (size < 1 || size > MAX_FRAGMENT)
+            throw new IllegalArgumentException("Size must be between 1 and " + MAX_FRAGMENT + ".");
+        sendLock.lock();
+        try {
+            coalesceDelay = delay;
+            coalesceSize = size;
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Turn keepalive on or off. With keepalive on, a connection that has not
+     * heard from the other side for the given interval sends it a probe,
+     * which it answers at once, and does so again every interval until
+     * something arrives. After the given number of probes has gone
+     * unanswered, and one more interval has passed, the other side is taken
+     * to be gone: the receive methods throw an {@link EOFException} once the
+     * data that did arrive has been returned, as if it had closed the
+     * connection, and {@link #close()} does not wait for it. <br>
+     * <br>
+     * Without keepalive a vanished peer is only noticed when a send times
+     * out, so a server that only receives from a client keeps its thread
+     * and connection forever. The probes are sent by the shared timer, not
+     * by a thread per connection, and only on idle connections. Off by
+     * default. Set on a listening connection, the setting is passed on to
+     * the connections it accepts.
+     * 
+     * @param interval
+     *            milliseconds of silence before a probe, e.g.
+     *            {@link #DEFAULT_KEEPALIVE_INTERVAL}, or 0 to turn keepalive
+     *            off.
+     * @param probes
+     *            number of unanswered probes before the other side is taken
+     *            to be gone, e.g. {@link #DEFAULT_KEEPALIVE_PROBES}.
+     */
+    public void setKeepAlive(int interval, int probes) {
+        if (interval < 0) throw new IllegalArgumentException("Interval can not be negative.");
+        if (probes < 1) throw new IllegalArgumentException("Probes must be at least 1.");
+        keepAliveInterval = interval;
+        keepAliveProbes = probes;
+        if (state == State.ESTABLISHED) startKeepAlive();
+    }
+
+    /**
+     * @return milliseconds of silence before a keepalive probe, or 0 if
+     *         keepalive is off, see {@link #setKeepAlive(int, int)}.
+     */
+    public int getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * @return number of unanswered keepalive probes before the other side
+     *         is taken to be gone, see {@link #setKeepAlive(int, int)}.
+     */
+    public int getKeepAliveProbes() {
+        return keepAliveProbes;
+    }
+
+    /**
+     * @return true if the other side stopped answering keepalive probes, see
+     *         {@link #setKeepAlive(int, int)}.
+     */
+    public boolean isPeerLost() {
+        return peerLost;
+    }
+
+    /**
+     * Start the keepalive checks, if keepalive is on. Called when the
+     * connection is established; the checks stop by themselves when it is no
+     * longer established.
+     */
+    protected synchronized void startKeepAlive() {
+        if (keepAliveInterval == 0 || keepAliveTimeout != null) return;
+        lastHeard = System.currentTimeMillis();
+        scheduleKeepAlive(keepAliveInterval);
+    }
+
+    /** Run {@link #checkAlive()} after the given delay. */
+    private synchronized void scheduleKeepAlive(long delay) {
+        keepAliveTimeout = TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                checkAlive();
+            }
+        }, Math.max(delay, TimerWheel.TICK), this);
+    }
+
+    /**
+     * Probe the other side if nothing has been heard from it for an
+     * interval, and give it up once the probes have gone unanswered, see
+     * {@link #setKeepAlive(int, int)}. Runs on the timer thread.
+     */
+    private void checkAlive() {
+        int interval = keepAliveInterval;
+        synchronized (this) {
+            keepAliveTimeout = null;
+            if (interval == 0 || state != State.ESTABLISHED) return;
+        }
+        long idle = System.currentTimeMillis() - lastHeard;
+        if (idle >= (long)interval * (keepAliveProbes + 1)) {
+            givePeerUp();
+            return;
+        }
+        if (idle >= interval) {
+            KtnDatagram probe = constructProbe(false, seqAfter(nextSequenceNo, -1));
+            Log.writeToLog(probe, "Keepalive probe after " + idle + " ms of silence",
+                    "AbstractConnection");
+            sendProbe(probe);
+        }
+        scheduleKeepAlive(interval - idle % interval);
+    }
+
+    /**
+     * Give up the other side after it stopped answering keepalive probes:
+     * wake every waiting receive, which then throws an EOFException.
+     */
+    private void givePeerUp() {
+        peerLost = true;
+        Log.writeToLog("No answer to " + keepAliveProbes + " keepalive probes, connection lost",
+                "AbstractConnection");
+        internalQueue.wakeAll();
+        externalQueue.wakeAll();
+        connectionLost();
+    }
+
+    /**
+     * Called when the other side has been given up, see
+     * {@link #setKeepAlive(int, int)}, so that asynchronous operations
+     * waiting for it can fail. Runs on the timer thread, so it must not
+     * block. Does nothing by default.
+     */
+    protected void connectionLost() {
+    }
+
+    /**
+     * Construct a keepalive probe, or the answer to one, see
+     * {@link Segment#probe(boolean)}. Unlike other data packets it does not
+     * take a sequence number of its own.
+     * 
+     * @param reply
+     *            true for the answer to a probe.
+     * @param seq
+     *            the sequence number to give it.
+     * @return the packet.
+     */
+    private KtnDatagram constructProbe(boolean reply, int seq) {
+        KtnDatagram packet = new KtnDatagram();
+        packet.setDest_port(remotePort);
+        packet.setDest_addr(remoteAddress);
+        packet.setSrc_addr(myAddress);
+        packet.setSrc_port(myPort);
+        packet.setFlag(Flag.NONE);
+        packet.setSeq_nr(seq);
+        Segment.probe(reply).writeTo(packet);
+        return packet;
+    }
+
+    /**
+     * Send a keepalive probe or answer once. A lost one is made up for by the
+     * next probe.
+     */
+    private void sendProbe(KtnDatagram probe) {
+        try {
+            simplySendPacket(probe);
+        }
+        catch (ClException e) {
+            Log.writeToLog(probe, "ClException: " + e.getMessage(), "AbstractConnection");
+        }
+        catch (IOException e) {
+            Log.writeToLog(probe, "IOException: " + e.getMessage(), "AbstractConnection");
+        }
+    }
+
+    /**
+     * Send a message from the application, coalesced with other small
+     * messages unless {@link #setNoDelay(boolean)} says otherwise. A short
+     * message is held back until the messages held back add up to the size
+     * set by {@link #setCoalescing(int, int)}, or until the delay set there has
+     * passed, and then sent together with them as one batch (see
+     * {@link Segment#join(List, int)}). Long messages, and every message in
+     * no-delay mode, are sent at once with {@link #sendFragmented(String)}
+     * after the messages held back. <br>
+     * <br>
+     * A batch fits in one data packet. When the delay has passed, the batch is
+     * sent from the timer thread if the send window has room for it; if not,
+     * or if another thread is sending, the timer tries again a little later.
+     * A failure to send it there is reported by the next call that sends.
+     * 
+     * @param message
+     *            the message to send, can not be null.
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     * @throws EOFException
+     *             if a FIN-packet was received while waiting for room in the
+     *             window.
+     */
+    protected void sendCoalesced(String message) throws IOException {
+        if (message == null) throw new IllegalArgumentException("Payload can not be null.");
+
+        sendLock.lock();
+        try {
+            if (noDelay || message.length() >= coalesceSize) {
+                sendFragmented(message);
+                return;
+            }
+            QueuedMessage earlier = queuedMessages.last(MAIN_STREAM);
+            if (earlier != null) sendQueued(true, earlier);
+            int length = Segment.framedLength(message);
+            if (coalescedLength + length > coalesceSize) flushCoalesced();
+            coalesced.add(message);
+            coalescedLength += length;
+            if (coalescedLength >= coalesceSize) {
+                flushCoalesced();
+            }
+            else if (coalesceTimeout == null) {
+                scheduleCoalesced(coalesceDelay);
+            }
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Send the messages held back by {@link #sendCoalesced(String)} after the
+     * given delay, see there. The caller must hold {@link #sendLock}.
+     */
+    private void scheduleCoalesced(int delay) {
+        coalesceTimeout = TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                // Never block the timer thread: try again next tick instead,
+                // keeping the handle so that flushCoalesced() can cancel it.
+                if (!sendLock.tryLock()) {
+                    coalesceTimeout = TimerWheel.getShared().schedule(this, TimerWheel.TICK,
+                            AbstractConnection.this);
+                    return;
+                }
+                try {
+                    coalesceTimeout = null;
+                    if (coalesced.isEmpty() || state != State.ESTABLISHED) return;
+                    if (sendWindow.isFull()) {
+                        coalesceTimeout = TimerWheel.getShared().schedule(this, TimerWheel.TICK,
+                                AbstractConnection.this);
+                        return;
+                    }
+                    flushCoalesced();
+                }
+                catch (IOException e) {
+                    // Reported by the send window on the next send.
+                    Log.writeToLog(e.getMessage(), "AbstractConnection");
+                }
+                finally {
+                    sendLock.unlock();
+                }
+            }
+        }, delay, this);
+    }
+
+    /**
+     * Send the messages held back by {@link #sendCoalesced(String)} now, if
+     * there are any. A single message is sent as it is, several as a batch.
+     * The caller must hold {@link #sendLock}.
+     */
+    private void flushCoalesced() throws IOException {
+        if (coalesceTimeout != null) coalesceTimeout.cancel();
+        coalesceTimeout = null;
+        if (coalesced.isEmpty()) return;
+
+        String batch = coalesced.size() == 1 ? coalesced.get(0) : Segment.join(coalesced,
+                coalescedLength);
+        boolean isBatch = coalesced.size() > 1;
+        coalesced.clear();
+        coalescedLength = 0;
+        sendFragments(batch, isBatch);
+    }
+
+    /**
+     * Send a message from the application without blocking, see
+     * {@link AsyncConnection#sendAsync(String)}. The message is put in a
+     * queue, and its fragments go into the send window as soon as there is
+     * room for them: at once if there is, otherwise when ACKs arrive (see
+     * {@link #deliver(KtnDatagram, boolean)}) or the retransmission timer
+     * runs. Messages sent with {@link #sendFragmented(String)} or
+     * {@link #sendCoalesced(String)} after this one wait for it, so messages
+     * keep their order. Messages sent this way are not coalesced.
+     * 
+     * @param message
+     *            the message to send, can not be null.
+     * @return a future completed once the message is in the send window, or
+     *         completed exceptionally if a packet in the window was never
+     *         acked or the connection was closed.
+     */
+    protected CompletableFuture<Void> sendQueued(String message) {
+        return sendQueued(MAIN_STREAM, message);
+    }
+
+    /**
+     * Send a message on a stream without blocking, see
+     * {@link #sendQueued(String)}. Every stream has a queue of its own, and
+     * the streams with messages waiting take turns putting one fragment in the
+     * send window (see {@link StreamScheduler}), so that a long message on
+     * one stream does not hold up short messages on the others.
+     * 
+     * @param stream
+     *            the stream.
+     * @param message
+     *            the message to send, can not be null.
+     * @return a future completed once the message is in the send window.
+     */
+    protected CompletableFuture<Void> sendQueued(int stream, String message) {
+        if (message == null) throw new IllegalArgumentException("Payload can not be null.");
+
+        QueuedMessage queued = queue(new QueuedMessage(stream, message, null));
+        advanceSendWindow();
+        return queued.future;
+    }
+
+    /**
+     * Put a message in the queue for its stream.
+     * 
+     * @return the message.
+     */
+    private QueuedMessage queue(QueuedMessage queued) {
+        queuedMessages.add(queued.stream, queued);
+        return queued;
+    }
+
+    /**
+     * Wait until a queued message is in the send window. The calling thread
+     * puts the queued messages of every stream in the window until its own is
+     * in, unless another thread is doing so; then it checks again every
+     * {@link TimerWheel#TICK} ms, so that it is not held up until the other
+     * thread's message is in too.
+     * 
+     * @param queued
+     *            a message added with {@link #queue(QueuedMessage)}.
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     */
+    private void awaitQueued(QueuedMessage queued) throws IOException {
+        while (true) {
+            if (sendLock.tryLock()) {
+                try {
+                    sendQueued(true, queued);
+                }
+                finally {
+                    sendLock.unlock();
+                }
+            }
+            try {
+                queued.future.get(TimerWheel.TICK, TimeUnit.MILLISECONDS);
+                return;
+            }
+            catch (TimeoutException e) { /* try again */
+            }
+            catch (InterruptedException e) { /* do nothing */
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * A message from {@link #sendQueued(int, String)} and how much of it has
+     * been put in the send window: a String, a binary message, or if neither,
+     * the end of the stream.
+     */
+    private static class QueuedMessage {
+
+        private final int stream;
+
+        private final String message;
+
+        /** A binary message, whose position is moved as it is sent. */
+        private final ByteBuffer bytes;
+
+        /** Index of the first character not yet sent. */
+        private int start;
+
+        /** True once the first fragment has been sent. */
+        private boolean started;
+
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        private QueuedMessage(int stream, String message, ByteBuffer bytes) {
+            this.stream = stream;
+            this.message = message;
+            this.bytes = bytes;
+        }
+
+        /** @return true if every fragment has been sent. */
+        private boolean isSent() {
+            if (!started) return false;
+            if (message != null) return start >= message.length();
+            return bytes == null || !bytes.hasRemaining();
+        }
+    }
+
+    /**
+     * Construct the data packet for the next fragment of a queued message.
+     * Fragments on streams other than the main stream are numbered within
+     * their stream. Must be called while holding {@link #sendLock}.
+     */
+    private KtnDatagram constructFragment(QueuedMessage queued) {
+        queued.started = true;
+        Segment segment;
+        if (queued.message != null) {
+            int end = Math.min(queued.message.length(), queued.start + MAX_FRAGMENT);
+            segment = new Segment(queued.message.substring(queued.start, end),
+                    end < queued.message.length(), false);
+            queued.start = end;
+        }
+        else if (queued.bytes != null) {
+            int length = Math.min(queued.bytes.remaining(), MAX_FRAGMENT);
+            segment = new Segment(queued.bytes, length, length < queued.bytes.remaining());
         }
         else {
-            // We are waiting for a packet to an external application, ie. a
-            // packet with no flags. Can possibly wait forever.
-            incomingPacket = new ClSocket().receive(myPort);
-            if (incomingPacket == null) {
-                // We should get a packet, try again.
-                synchronized (this) {
-                    isReceiving = false;
-                    notifyAll();
+            segment = Segment.end();
+        }
+        if (queued.stream == MAIN_STREAM) return constructDataPacket(segment);
+        Integer streamSeq = streamSeqs.get(queued.stream);
+        if (streamSeq == null) streamSeq = 0;
+        if (segment.isEnd()) streamSeqs.remove(queued.stream);
+        else streamSeqs.put(queued.stream, streamSeq + 1);
+        return constructDataPacket(segment.onStream(queued.stream, streamSeq));
+    }
+
+    /**
+     * Feed the ACKs received to the send window, and put as much of the queued
+     * messages (see {@link #sendQueued(String)}) in it as there is room for,
+     * without blocking. Without this, ACKs would only be looked at by the
+     * next thread that sends. If another thread is sending, that thread
+     * handles the ACKs, and the queued messages are tried again next tick.
+     */
+    private void advanceSendWindow() {
+        if (queuedMessages.isEmpty() && sendWindow.isEmpty()) return;
+        if (!sendLock.tryLock()) {
+            if (!queuedMessages.isEmpty()) retryQueued(TimerWheel.TICK);
+            return;
+        }
+        try {
+            if (state != State.ESTABLISHED && state != State.CLOSE_WAIT) return;
+            if (queuedMessages.isEmpty()) processQueuedAcks();
+            else sendQueued(false, null);
+        }
+        catch (IOException e) {
+            // The futures have been failed, or the next send will fail.
+            Log.writeToLog(e.getMessage(), "AbstractConnection");
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Call {@link #advanceSendWindow()} after the given delay, unless a call is
+     * already set up.
+     */
+    private void retryQueued(int delay) {
+        if (!queuedRetry.compareAndSet(false, true)) return;
+        TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                queuedRetry.set(false);
+                advanceSendWindow();
+            }
+        }, delay, this);
+    }
+
+    /**
+     * Put the queued messages (see {@link #sendQueued(int, String)}) in the
+     * send window, one fragment per turn of their stream, after any messages
+     * held back by {@link #sendCoalesced(String)}, which were sent earlier.
+     * The caller must hold {@link #sendLock}.
+     * 
+     * @param wait
+     *            true to wait for room in the window, false to stop when it
+     *            is full and try again when the retransmission timer runs, so
+     *            that a failed packet is noticed also if no ACK arrives.
+     * @param until
+     *            a queued message to stop after, or null to go on until the
+     *            queues are empty.
+     * @throws IOException
+     *             if a packet in the window was never acked. Every queued
+     *             message fails with it.
+     */
+    private void sendQueued(boolean wait, QueuedMessage until) throws IOException {
+        if (queuedMessages.isEmpty()) return;
+        try {
+            if (!wait) {
+                processQueuedAcks();
+                sendWindow.checkFailure();
+            }
+            if (!coalesced.isEmpty()) {
+                if (!wait && sendWindow.isFull()) {
+                    retryQueued(getRetransmitTimeout());
+                    return;
                 }
-                return receivePacket(internal);
+                flushCoalesced();
+            }
+            QueuedMessage queued;
+            while ((until == null || !until.future.isDone())
+                    && (queued = queuedMessages.peek()) != null) {
+                if (!wait && sendWindow.isFull()) {
+                    retryQueued(getRetransmitTimeout());
+                    return;
+                }
+                sendDataPacketWindowed(constructFragment(queued));
+                boolean sent = queued.isSent();
+                queuedMessages.advance(sent);
+                if (sent) queued.future.complete(null);
+            }
+        }
+        catch (IOException e) {
+            failQueued(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Fail every message queued by {@link #sendQueued(int, String)}.
+     */
+    private void failQueued(IOException e) {
+        for (QueuedMessage queued : queuedMessages.clear()) {
+            queued.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Wait until every packet sent with
+     * {@link #sendDataPacketWindowed(KtnDatagram)} has been acked.
+     * 
+     * @throws IOException
+     *             if a packet in the window was never acked.
+     * @throws EOFException
+     *             if a FIN-packet was received while waiting.
+     */
+    protected void flushSendWindow() throws IOException {
+        sendLock.lock();
+        try {
+            sendQueued(true, null);
+            flushCoalesced();
+            processQueuedAcks();
+            while (!sendWindow.isEmpty()) {
+                sendWindow.checkFailure();
+                handleAck(receiveAck());
+            }
+            sendWindow.checkFailure();
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Send what is left to send without blocking: the messages held back by
+     * {@link #sendCoalesced(String)} and queued by {@link #sendQueued(int, String)},
+     * as far as the send window has room for them. Called again and again by a
+     * close until it returns true, see {@link ConnectionImpl#closeAsync()}.
+     * 
+     * @return true once every message sent so far has been acked, or a packet
+     *         in the window was never acked.
+     */
+    protected boolean drainSendWindow() {
+        if (!sendLock.tryLock()) return false;
+        try {
+            processQueuedAcks();
+            sendWindow.checkFailure();
+            if (!queuedMessages.isEmpty()) sendQueued(false, null);
+            else if (!coalesced.isEmpty() && !sendWindow.isFull()) flushCoalesced();
+            return queuedMessages.isEmpty() && coalesced.isEmpty() && sendWindow.isEmpty();
+        }
+        catch (IOException e) {
+            Log.writeToLog("Unacked data at close: " + e.getMessage(), "AbstractConnection");
+            return true;
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Stop retransmitting the packets in the send window. Used when the
+     * connection is closed.
+     */
+    protected void closeSendWindow() {
+        sendWindow.close();
+        TimerWheel.getShared().cancelAll(this);
+        failQueued(new ConnectException("Connection closed."));
+    }
+
+    /**
+     * Handle a packet returned by {@link #receiveAck()} while the send window
+     * is in use. ACKs are matched against the window, and a duplicate SYN_ACK
+     * (our ACK of it was lost) is acked again. FINs are acked when they
+     * arrive, see {@link ConnectionImpl#packetDelivered(KtnDatagram)}.
+     */
+    private void handleAck(KtnDatagram packet) throws IOException {
+        if (packet == null || !isValid(packet)) return;
+        if (packet.getFlag() == Flag.ACK) {
+            sendWindow.acknowledge(packet);
+        }
+        else if (packet.getFlag() == Flag.SYN_ACK) {
+            sendAck(packet, false);
+        }
+    }
+
+    /**
+     * Feed the packets waiting in the internal queue to the send window,
+     * without blocking.
+     */
+    private void processQueuedAcks() throws IOException {
+        KtnDatagram packet;
+        while ((packet = internalQueue.poll()) != null) {
+            handleAck(packet);
+        }
+    }
+
+    /**
+     * Send an ack or synack for the given packet. <br>
+     * If the send fails, there is no retransmission of the ack-packet: Just
+     * wait for the other side to retransmit the original packet.<br>
+     * <br>
+     * This method relies on
+     * {@link #constructInternalPacket(Flag)}, i.e. myAddress,
+     * myPort, remoteAddress, remotePort and sequenceNo must be initialized
+     * properly.
+     * 
+     * @param packetToAck
+     *            The packet that should be acked
+     * @param synAck
+     *            true if a synack should be sent, false if a regular ack, see
+     *            {@link KtnDatagram.Flag}.
+     * @throws ConnectException
+     *             Thrown if unable to send packet.
+     * @see #constructInternalPacket(Flag)
+     */
+    protected synchronized void sendAck(KtnDatagram packetToAck, boolean synAck)
+            throws IOException, ConnectException {
+    
+        /*
+         * Algorithm: Generate a new ack packet based on the packet given as
+         * input Try to send the ack Catch a ConnectException if the sending
+         * failed - and write this to the Log.
+         */
+    
+        KtnDatagram ackToSend = constructInternalPacket(synAck ? Flag.SYN_ACK : Flag.ACK);
+        ackToSend.setAck(packetToAck.getSeq_nr());
+    
+        Log.writeToLog(ackToSend, "Sending Ack: " + ackToSend.getAck(), "AbstractConnection");
+        if (!transmitAck(ackToSend)) {
+            if (synAck) nextSequenceNo--;
+            throw new ConnectException("Unable to send ACK.");
+        }
+    }
+
+    /**
+     * Send an ACK packet, trying a few times if the other side is not ready to
+     * receive it. From a timed task (see {@link TimerWheel#inTimedTask()}) it
+     * is tried only once, without waiting: the other side will retransmit,
+     * and the tasks of this connection must not be held up.
+     * 
+     * @return true if the packet was sent.
+     */
+    private boolean transmitAck(KtnDatagram ackToSend) throws IOException {
+        int tries = TimerWheel.inTimedTask() ? 0 : 3;
+        boolean sent = false;
+
+        // Send the ack, trying at most `tries' times.
+        do {
+            try {
+                Transport.getCurrent().open().send(ackToSend);
+                sent = true;
             }
-            else {
-                // We have a packet
-                if (incomingPacket.getFlag() != Flag.NONE) {
-                    // Packet is internal
-                    Log.writeToLog("Received an internal packet in doReceive", "AbstractConnection");
-    
-                    if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                        // A FIN-packet has arrived in established state,
-                        // stop receiving and throw and exception
-                        disconnectRequest = incomingPacket;
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            throw new EOFException("FIN packet received.");
-                        }
+            catch (ClException e) {
+                Log.writeToLog(ackToSend, "CLException: Could not establish a "
+                        + "connection to the specified address/port!", "AbstractConnection");
+            }
+            catch (SocketException e) {
+                // Silently ignore: Maybe recipient was processing and didn't
+                // manage to accept the packet before we were ready to send, or
+                // dropped the connection while we were sending.
+                if (tries > 0) {
+                    try {
+                        Thread.sleep(100);
                     }
-                    else {
-                        // Not a FIN packet, continue listening
-                        synchronized (this) {
-                            internalQueue.add(incomingPacket);
-                            isReceiving = false;
-                            notifyAll();
-                        }
-                        return receivePacket(internal);
+                    catch (InterruptedException ex) {
                     }
                 }
-                else {
-                    // Packet was meant for the application, yei!
-                    Log.writeToLog("Received an external packet in doReceive", "AbstractConnection");
-    
-                    synchronized (this) {
-                        isReceiving = false;
-                        notifyAll();
-                        return incomingPacket;
+            }
+        }
+        while (!sent && (tries-- > 0));
+        return sent;
+    }
+
+    /**
+     * Choose whether ACKs for received data are held back for up to
+     * {@link #ACK_DELAY} ms so that one cumulative ACK covers several packets,
+     * or only for {@link #PIGGYBACK_DELAY} ms, long enough for a quick reply
+     * to carry it. Off by default.
+     * 
+     * @param delayed
+     *            true to delay ACKs, false to only hold them back briefly.
+     * @see #acknowledgeData(KtnDatagram)
+     */
+    public void setDelayedAck(boolean delayed) {
+        synchronized (this) {
+            delayedAck = delayed;
+        }
+        if (!delayed) flushDataAck();
+    }
+
+    /**
+     * @return true if ACKs for received data are delayed, see
+     *         {@link #setDelayedAck(boolean)}.
+     */
+    public synchronized boolean isDelayedAck() {
+        return delayedAck;
+    }
+
+    /**
+     * Acknowledge a data packet accepted by
+     * {@link #bufferDataPacket(KtnDatagram)}. The ACK is cumulative, see
+     * {@link #sendDataAck()}. <br>
+     * <br>
+     * The ACK for a packet that arrived in sequence is held back for a short
+     * while (see {@link #setDelayedAck(boolean)}): if the application sends
+     * data in the meantime, the ACK goes with the first data packet (a
+     * piggybacked ACK, see {@link Segment}), and no ACK packet is needed.
+     * Otherwise it is sent on its own when the time is up, or as soon as
+     * {@link #ACK_EVERY} packets are waiting for it. Packets that arrive out
+     * of order, or twice, are acked at once.
+     * 
+     * @param packet
+     *            the data packet just received.
+     * @throws IOException
+     *             if the ACK could not be sent.
+     */
+    protected void acknowledgeData(KtnDatagram packet) throws IOException {
+        synchronized (this) {
+            unackedPackets++;
+            if (unackedPackets < ACK_EVERY && packet.getSeq_nr() == lastReceivedSeqNo()) {
+                if (ackTimeout == null) {
+                    ackTimeout = TimerWheel.getShared().schedule(new Runnable() {
+                        public void run() {
+                            synchronized (AbstractConnection.this) {
+                                ackTimeout = null;
+                            }
+                            flushDataAck();
+                        }
+                    }, delayedAck ? ACK_DELAY : PIGGYBACK_DELAY, this);
+                }
+                return;
+            }
+        }
+        sendDataAck();
+    }
+
+    /**
+     * Send a cumulative ACK for the data received so far. The ack number is
+     * the last sequence number up to which every data packet has arrived. If
+     * packets after that have arrived out of order, the ACK also carries a
+     * bitmap of them in its sequence number field (selective ACK, see
+     * {@link #SACK_BITS}): bit i set means that sequence number ack + 2 + i
+     * has arrived. The field also carries the receive window, see
+     * {@link #RECEIVE_BUFFER}. See {@link SendWindow#acknowledge(KtnDatagram)}
+     * for the other side.
+     * 
+     * @throws ConnectException
+     *             if the ACK could not be sent.
+     */
+    protected void sendDataAck() throws IOException {
+        KtnDatagram ackToSend;
+        synchronized (this) {
+            unackedPackets = 0;
+            if (ackTimeout != null) ackTimeout.cancel();
+            ackTimeout = null;
+
+            ackToSend = constructInternalPacket(Flag.ACK);
+            ackToSend.setAck(lastReceivedSeqNo());
+            ackToSend.setSeq_nr(ackField(ackToSend.getAck()));
+        }
+
+        Log.writeToLog(ackToSend, "Sending Ack: " + ackToSend.getAck(), "AbstractConnection");
+        if (!transmitAck(ackToSend)) throw new ConnectException("Unable to send ACK.");
+    }
+
+    /**
+     * Put the ACK held back by {@link #acknowledgeData(KtnDatagram)}, if
+     * there is one, on a data packet about to be sent.
+     * 
+     * @param packet
+     *            a data packet made by {@link #constructDataPacket(String)}.
+     */
+    private void piggybackAck(KtnDatagram packet) {
+        Segment segment = Segment.decode(packet);
+        int ack;
+        synchronized (this) {
+            if (unackedPackets == 0) return;
+            unackedPackets = 0;
+            if (ackTimeout != null) ackTimeout.cancel();
+            ackTimeout = null;
+
+            ack = lastReceivedSeqNo();
+            segment.withAck(ack, ackField(ack)).writeTo(packet);
+        }
+        Log.writeToLog(packet, "Piggybacking Ack: " + ack, "AbstractConnection");
+    }
+
+    /**
+     * @param ack
+     *            the cumulative ack number.
+     * @return the sequence number field of an ACK for data: the selective
+     *         ACK bitmap and the receive window, see {@link #sendDataAck()}.
+     */
+    private synchronized int ackField(int ack) {
+        advertisedWindow = receiveWindow();
+        return selectiveAcks(ack) | (advertisedWindow + 1) << SACK_BITS;
+    }
+
+    /**
+     * @return the number of data packets there is room for in the receive
+     *         buffer, see {@link #RECEIVE_BUFFER}.
+     */
+    private synchronized int receiveWindow() {
+        return Math.max(0, RECEIVE_BUFFER - replayWindow.untaken() - getUnreadPackets());
+    }
+
+    /**
+     * @return the number of data packets taken with
+     *         {@link #nextBufferedPacket()} whose data the application has not
+     *         read yet, see {@link #RECEIVE_BUFFER}. Called while this
+     *         connection is locked, so it must not wait for other locks. 0 by
+     *         default.
+     */
+    protected int getUnreadPackets() {
+        return 0;
+    }
+
+    /**
+     * Tell the other side that there is room in the receive buffer again, if
+     * the last ACK said there was little, so that a sender waiting for the
+     * window to open does not have to wait for its next probe. Should be
+     * called when the application has read data, see
+     * {@link #getUnreadPackets()}, and not while holding a lock receivers
+     * wait for, as it may send an ACK.
+     */
+    protected void receiveWindowOpened() {
+        synchronized (this) {
+            if (advertisedWindow >= RECEIVE_BUFFER / 4) return;
+            if (receiveWindow() < RECEIVE_BUFFER / 2) return;
+        }
+        try {
+            sendDataAck();
+        }
+        catch (IOException e) {
+            // The sender probes the window until it hears about it.
+            Log.writeToLog(e.getMessage(), "AbstractConnection");
+        }
+    }
+
+    /**
+     * @param ack
+     *            the cumulative ack number, see {@link #lastReceivedSeqNo()}.
+     * @return the selective ACK bitmap of the packets after ack that have
+     *         arrived, see {@link #sendDataAck()}.
+     */
+    private synchronized int selectiveAcks(int ack) {
+        // Bit 0 stands for ack + 2, as ack + 1 is known to be missing.
+        int offset = seqDistance(nextExpectedSeqNo, ack) + 2;
+        return offset < 0 ? 0 : replayWindow.bitmap(offset, SACK_BITS);
+    }
+
+    /**
+     * Send the ACK held back by {@link #acknowledgeData(KtnDatagram)} now, if
+     * there is one. Should be called before closing the connection.
+     */
+    protected void flushDataAck() {
+        synchronized (this) {
+            if (unackedPackets == 0) return;
+        }
+        try {
+            sendDataAck();
+        }
+        catch (IOException e) {
+            // The data will be retransmitted and acked again.
+            Log.writeToLog(e.getMessage(), "AbstractConnection");
+        }
+    }
+
+    /**
+     * @return the sequence number up to which every data packet has been
+     *         received, whether or not it has been handed to the application.
+     */
+    private synchronized int lastReceivedSeqNo() {
+        return seqAfter(nextExpectedSeqNo, replayWindow.inSequence() - 1);
+    }
+
+    /**
+     * Start receiving packets on {@link #myPort}. Packets are received by the
+     * {@link PacketDemultiplexer} for the port, and handed to this connection
+     * through {@link #deliver(KtnDatagram, boolean)}. Calling this more than
+     * once has no effect. Receiving stops when {@link #stopReceiving()} is
+     * called.
+     */
+    protected void startReceiving() {
+        if (!isReceiving.compareAndSet(false, true)) return;
+        PacketDemultiplexer.register(myPort, this);
+    }
+
+    /**
+     * Stop receiving packets on {@link #myPort}, see {@link #startReceiving()}.
+     */
+    protected void stopReceiving() {
+        if (!isReceiving.compareAndSet(true, false)) return;
+        PacketDemultiplexer.unregister(myPort, this);
+    }
+
+    /**
+     * Hand a packet received on {@link #myPort} to this connection. A packet
+     * with a damaged payload is dropped here, unless the transport has
+     * checked it already, so that the checksum of a packet is computed once,
+     * and later checks need not repeat it. Every other
+     * packet from the other side shows that it is still there, see
+     * {@link #setKeepAlive(int, int)}; keepalive probes are answered here,
+     * and go no further. Data
+     * packets are put in the external queue and other packets in the internal
+     * queue. An ACK piggybacked on a data packet is also put in the internal
+     * queue, as an ACK packet of its own. A FIN in ESTABLISHED state is stored
+     * in {@link #disconnectRequest} instead, and makes the receive methods
+     * throw an EOFException. Packets that do not fit in their queue are
+     * dropped. <br>
+     * <br>
+     * An ACK may make room in the send window for messages queued by
+     * {@link #sendQueued(String)}, which are then sent. Finally
+     * {@link #packetDelivered(KtnDatagram)} is called. <br>
+     * <br>
+     * Called by the {@link PacketDemultiplexer} thread. Whatever may send,
+     * i.e. answering a probe, sending queued messages and
+     * {@link #packetDelivered(KtnDatagram)}, is left to the shared
+     * {@link TimerWheel}, see {@link #afterDelivery(Runnable)}.
+     * 
+     * @param packet
+     *            a packet addressed to this connection.
+     * @param checked
+     *            true if the packet has been checked for damage by the
+     *            transport, see {@link Transport#checksPackets()}.
+     */
+    void deliver(final KtnDatagram packet, boolean checked) {
+        if ((packet.getFlag() == Flag.NONE) == (packet.getPayloadAsBytes() == null)
+                && packet.getFlag() != Flag.SYN) {
+            // Only data packets (and SYNs) carry a payload; the flag must be damaged.
+            Log.writeToLog(packet, "Flag does not match payload, dropped", "AbstractConnection");
+            return;
+        }
+        if (!checked && packet.calculateChecksum() != packet.getChecksum()) {
+            Log.writeToLog(packet, "Checksum error, packet dropped", "AbstractConnection");
+            return;
+        }
+        if (isRemote(packet.getSrc_addr(), packet.getSrc_port())) {
+            lastHeard = System.currentTimeMillis();
+        }
+        boolean acking = packet.getFlag() == Flag.ACK;
+        if (packet.getFlag() == Flag.NONE) {
+            final Segment segment = Segment.decode(packet);
+            if (segment != null && segment.isKeepAlive()) {
+                afterDelivery(new Runnable() {
+                    public void run() {
+                        answerProbe(packet, segment);
                     }
+                });
+                return;
+            }
+            Log.writeToLog("Received an external packet in deliver", "AbstractConnection");
+            KtnDatagram ack = piggybackedAck(packet, segment);
+            if (ack != null && !internalQueue.offer(ack)) {
+                Log.writeToLog(ack, "Internal queue full, packet dropped", "AbstractConnection");
+            }
+            if (!externalQueue.offer(packet)) {
+                Log.writeToLog(packet, "External queue full, packet dropped", "AbstractConnection");
+            }
+            acking = ack != null;
+        }
+        else if (packet.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
+            Log.writeToLog("Received a FIN packet in deliver", "AbstractConnection");
+            synchronized (this) {
+                // Prefer the copy whose sequence number follows the data.
+                if (disconnectRequest == null || packet.getSeq_nr() == nextExpectedSeqNo) {
+                    disconnectRequest = packet;
+                }
+            }
+            // No more packets will come; let every waiter see the FIN.
+            internalQueue.wakeAll();
+            externalQueue.wakeAll();
+        }
+        else {
+            Log.writeToLog("Received an internal packet in deliver", "AbstractConnection");
+            if (!internalQueue.offer(packet)) {
+                Log.writeToLog(packet, "Internal queue full, packet dropped", "AbstractConnection");
+            }
+        }
+        final boolean advance = acking;
+        afterDelivery(new Runnable() {
+            public void run() {
+                if (advance) advanceSendWindow();
+                packetDelivered(packet);
+            }
+        });
+    }
+
+    /**
+     * Run what a delivered packet sets off on a worker of the shared
+     * {@link TimerWheel}, in order with the other tasks of this connection,
+     * and not on the {@link PacketDemultiplexer} thread: it may send, and a
+     * send to a peer that does not answer must not hold up the other
+     * connections on the port.
+     */
+    private void afterDelivery(Runnable task) {
+        TimerWheel.getShared().execute(task, this);
+    }
+
+    /**
+     * Called by {@link #deliver(KtnDatagram, boolean)} after a packet has
+     * been put in its queue, or stored in {@link #disconnectRequest}, so that
+     * asynchronous operations waiting for it can go on. Runs on a worker of
+     * the shared {@link TimerWheel}, one packet at a time and in the order
+     * they arrived, so it may send. Does nothing by default.
+     * 
+     * @param packet
+     *            the packet just delivered.
+     */
+    protected void packetDelivered(KtnDatagram packet) {
+    }
+
+    /**
+     * Take the ACK piggybacked on a received data packet, see
+     * {@link #piggybackAck(KtnDatagram)}.
+     * 
+     * @param packet
+     *            a received data packet.
+     * @param segment
+     *            its payload, or null if it is not a segment.
+     * @return an ACK packet with the same ack number and selective ACK bitmap
+     *         as the piggybacked ACK, or null if the packet has none.
+     */
+    private KtnDatagram piggybackedAck(KtnDatagram packet, Segment segment) {
+        if (segment == null || !segment.isAcking()) return null;
+
+        KtnDatagram ack = new KtnDatagram();
+        ack.setDest_port(packet.getDest_port());
+        ack.setDest_addr(packet.getDest_addr());
+        ack.setSrc_addr(packet.getSrc_addr());
+        ack.setSrc_port(packet.getSrc_port());
+        ack.setFlag(Flag.ACK);
+        ack.setSeq_nr(segment.getSelective());
+        ack.setAck(segment.getAck());
+        return ack;
+    }
+
+    /**
+     * Answer a keepalive probe from the other side, see
+     * {@link #setKeepAlive(int, int)}. The answer itself needs nothing more:
+     * it has been heard.
+     */
+    private void answerProbe(KtnDatagram packet, Segment segment) {
+        if (segment.isProbeReply() || state != State.ESTABLISHED
+                || !isRemote(packet.getSrc_addr(), packet.getSrc_port())) {
+            return;
+        }
+        Log.writeToLog(packet, "Answering keepalive probe", "AbstractConnection");
+        sendProbe(constructProbe(true, packet.getSeq_nr()));
+    }
+
+    /**
+     * @return true if this connection is to the given remote address and port.
+     */
+    boolean isRemote(String address, int port) {
+        return port == remotePort && address != null && address.equals(remoteAddress);
+    }
+
+    /**
+     * @return true if the remote side of the connection is known, i.e. it is
+     *         neither closed, listening nor waiting for a SYN_ACK.
+     */
+    boolean isBound() {
+        return state != State.CLOSED && state != State.LISTEN && state != State.SYN_SENT;
+    }
+
+    /**
+     * Receives a packet from the connectionless layer. Packets are received by
+     * the {@link PacketDemultiplexer} for our port, so this only waits for a
+     * packet to show up in the right queue.<br>
+     * <br>
+     * If a FIN-packet has been received in ESTABLISHED state, an EOFException
+     * is thrown (for external packets, once every data packet sent before the
+     * FIN has been returned, i.e. the FIN is next in sequence). So it is once
+     * the other side has stopped answering keepalive probes, see
+     * {@link #setKeepAlive(int, int)}.
+     * 
+     * @param internal
+     *            true if you want to receive non-external packet, i.e. not a
+     *            packet with data intended for the application. False
+     *            otherwise.
+     * @return A received datagram, or null if no internal packet arrived within
+     *         {@link #getReceiveTimeout()}. Never null for external packets.
+     * @throws IOException
+     *             If the underlying connectionless layer throws an IOException.
+     * @throws EOFException
+     *             If a packet with a FIN-flag was received in ESTABLISHED
+     *             state.
+     */
+    protected KtnDatagram receivePacket(boolean internal) throws IOException, EOFException {
+        startReceiving();
+        long deadline = System.currentTimeMillis() + getReceiveTimeout();
+        PacketQueue queue = internal ? internalQueue : externalQueue;
+
+        while (true) {
+            KtnDatagram packet = queue.poll();
+            if (packet != null) return packet;
+            checkEnd(!internal);
+
+            try {
+                if (internal) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) return null;
+                    queue.await(left); // wait with timeout
                 }
+                else queue.await(0); // wait (potentially) forever
+            }
+            catch (InterruptedException e) { /* do nothing */
             }
         }
     }
 
+    /**
+     * Take a packet from the connectionless layer without waiting, see
+     * {@link #receivePacket(boolean)}.
+     * 
+     * @param internal
+     *            true for an internal packet, false for a data packet.
+     * @return A received datagram, or null if none has arrived.
+     * @throws EOFException
+     *             If there are no more data packets, as a packet with a
+     *             FIN-flag was received in ESTABLISHED state.
+     */
+    protected KtnDatagram pollPacket(boolean internal) throws EOFException {
+        KtnDatagram packet = (internal ? internalQueue : externalQueue).poll();
+        if (packet == null && !internal) checkEnd(true);
+        return packet;
+    }
+
     /**
      * Waits for an ACK or SYN_ACK. Blocks until the ack is recieved. Returns
      * null if no ack recieved after the specified time, see
-     * {@link AbstractConnection#TIMEOUT}. <br>
+     * {@link #getReceiveTimeout()}. <br>
      * <br>
      * If a FIN-packet is received and the state is not ESTABLISHED, this will
      * also be returned.<br>
      * <br>
      * If a FIN-packet is received and the connection is in ESTABLISHED state,
-     * an EOFException is thrown. It calls {@link #isValid(KtnDatagram)} on
-     * FIN-packets in ESTABLISHED state, before an EOFException is thrown.
+     * an EOFException is thrown. Other internal packets (a SYN) are dropped.
      * 
      * @return The ACK or SYN_ACK KtnDatagram recieved (can be null), may also
      *         be a FIN if not in established state.
@@ -535,127 +2053,141 @@ public abstract class AbstractConnection implements Connection {
      *             If a FIN-packet is received in ESTABLISHED state.
      */
     protected KtnDatagram receiveAck() throws IOException, EOFException {
-        /*
-         * Acquire monitor for this instance, and see if another thread runs
-         * receive on our port. If so, see if that thread gets the packet that
-         * was meant for us.
-         */
-        synchronized (this) {
-            long before, after;
+        return receiveAck(getReceiveTimeout());
+    }
 
-            before = System.currentTimeMillis();
-            while (isReceiving) {
-                try {
-                    wait(TIMEOUT); // wait with timeout
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-                after = System.currentTimeMillis();
-
-                // If an ack for us has arrived, return it.
-                // check internalQueue
-                if (!internalQueue.isEmpty()) {
-                    KtnDatagram packet = internalQueue.get(0);
-                    if (packet.getFlag() == Flag.ACK || packet.getFlag() == Flag.SYN_ACK) {
-                        return internalQueue.remove(0);
-                    }
-                }
-                // If no packet arrived, see if timeout has expired.
-                else if ((after - before) > TIMEOUT) {
-                    return null;
+    /**
+     * Waits for an ACK or SYN_ACK for at most the given time, see
+     * {@link #receiveAck()}.
+     * 
+     * @param timeout
+     *            milliseconds to wait.
+     * @return The ACK or SYN_ACK KtnDatagram recieved (can be null), may also
+     *         be a FIN if not in established state.
+     * @throws IOException
+     *             If caused by the underlying connectionless layer.
+     * @throws EOFException
+     *             If a FIN-packet is received in ESTABLISHED state.
+     */
+    protected KtnDatagram receiveAck(int timeout) throws IOException, EOFException {
+        startReceiving();
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            KtnDatagram packet = internalQueue.poll();
+            if (packet != null) {
+                if (packet.getFlag() == Flag.ACK || packet.getFlag() == Flag.SYN_ACK
+                        || packet.getFlag() == Flag.FIN) {
+                    return packet;
                 }
+                Log.writeToLog(packet, "Not an ACK, dropped", "AbstractConnection");
+                continue;
             }
+            checkEnd(false);
 
-            // When we get here, this thread has not got its packet, and it's
-            // allowed to enter the listening part of doReceive().
-            isReceiving = true;
-        }
-
-        Log.writeToLog("Waiting for incoming packet in receiveAck()", "AbstractConnection");
-
-        KtnDatagram incomingPacket;
-
-        // We are waiting for an ack or syn_ack packet
-        long start = System.currentTimeMillis();
-        while (System.currentTimeMillis() - start < TIMEOUT) {
-            ClSocketReceiver receiver = new ClSocketReceiver(myPort);
-            receiver.start();
-            // Wait at most what is left of the TIMEOUT period for thread to
-            // die, but never less than 1 millisecond
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return null;
             try {
-                receiver.join(Math.max(TIMEOUT - (System.currentTimeMillis() - start), 1));
+                internalQueue.await(left); // wait with timeout
             }
             catch (InterruptedException e) { /* do nothing */
             }
+        }
+    }
 
-            receiver.stopReceive();
-            incomingPacket = receiver.getPacket();
-            if (incomingPacket == null) {
-                // No packet was received
-                synchronized (this) {
-                    isReceiving = false;
-                    notifyAll();
-                    return null;
-                }
-            }
-            else {
-                // We have a packet
-                if (incomingPacket.getFlag() != Flag.NONE) {
-                    // Packet is internal
-                    Log.writeToLog("Received an internal packet in receiveAck",
-                            "AbstractConnection");
-
-                    if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                        // A FIN-packet has arrived in established state,
-                        // stop receiving and throw and exception
-                        disconnectRequest = incomingPacket;
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            throw new EOFException("FIN packet received.");
-                        }
-                    }
-                    else if (incomingPacket.getFlag() == Flag.ACK
-                            || incomingPacket.getFlag() == Flag.SYN_ACK
-                            || incomingPacket.getFlag() == Flag.FIN) {
-                        // Not a FIN packet in established state, return if it
-                        // is SYN, SYN_ACK or FIN
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            return incomingPacket;
-                        }
-                    }
-                    else {
-                        // Not a packet we want to return, continue looping.
-                        synchronized (this) {
-                            internalQueue.add(incomingPacket);
-                            notifyAll();
-                        }
-                    }
-                }
-                else {
-                    // Packet was meant for the application, continue
-                    // listening until timeout.
-                    Log.writeToLog("Received an external packet in receiveAck",
-                            "AbstractConnection");
-
-                    synchronized (this) {
-                        synchronized (this) {
-                            externalQueue.add(incomingPacket);
-                            notifyAll();
-                        }
-                    }
-                }
-            }
+    /**
+     * Throw an EOFException if a FIN has been received in ESTABLISHED state
+     * (see {@link #isDisconnectRequested(boolean)}), or if the other side has
+     * stopped answering keepalive probes (see {@link #setKeepAlive(int, int)}).
+     * 
+     * @param inSequence
+     *            true to only count a FIN that follows every data packet
+     *            handed to the application so far.
+     */
+    private void checkEnd(boolean inSequence) throws EOFException {
+        if (isDisconnectRequested(inSequence)) throw new EOFException("FIN packet received.");
+        if (peerLost) throw new EOFException("Connection lost: no answer to keepalive probes.");
+    }
+
+    /**
+     * @param inSequence
+     *            true to only count a FIN that follows every data packet
+     *            handed to the application so far.
+     * @return true if a FIN has been received in ESTABLISHED state, see
+     *         {@link #disconnectRequest}.
+     */
+    private synchronized boolean isDisconnectRequested(boolean inSequence) {
+        if (disconnectRequest == null || state != State.ESTABLISHED) return false;
+        return !inSequence || disconnectRequest.getSeq_nr() == nextExpectedSeqNo;
+    }
+
+    /**
+     * Buffer a received data packet until it is handed to the application.
+     * A packet that has arrived before, e.g. a retransmission whose ACK was
+     * lost or a ghost copy made by the network, is found in constant time
+     * and dropped, but should be acked again, as the sender may be waiting
+     * for it. <br>
+     * <br>
+     * Call this on valid data packets before acking them: packets that return
+     * false must not be acked, as they have been dropped. A packet that
+     * arrives while the receive buffer is full (see {@link #RECEIVE_BUFFER})
+     * is dropped too, but should be acked: the ACK does not cover it, and
+     * tells the sender that the window is closed.
+     * 
+     * @param packet
+     *            a valid data packet.
+     * @return true if the packet should be acked, i.e. it is buffered, it
+     *         has been received before, or the receive buffer is full. False
+     *         if it is too far ahead of
+     *         {@link #nextExpectedSeqNo}, see {@link #REORDER_LIMIT}.
+     * @see #nextBufferedPacket()
+     */
+    protected synchronized boolean bufferDataPacket(KtnDatagram packet) {
+        int distance = seqDistance(nextExpectedSeqNo, packet.getSeq_nr());
+        if (distance < 0) {
+            Log.writeToLog(packet, "Duplicate packet, already delivered", "AbstractConnection");
+            return true;
         }
-        // We have now waited at least TIMEOUT milliseconds, still no
-        // packet.
-        synchronized (this) {
-            isReceiving = false;
-            notifyAll();
-            return null;
+        if (distance >= REORDER_LIMIT) {
+            Log.writeToLog(packet, "Packet too far ahead, dropped", "AbstractConnection");
+            return false;
         }
+        if (replayWindow.contains(distance)) {
+            Log.writeToLog(packet, "Duplicate packet, already buffered", "AbstractConnection");
+            return true;
+        }
+        if (receiveWindow() == 0) {
+            Log.writeToLog(packet, "Receive buffer full, packet dropped", "AbstractConnection");
+            return true;
+        }
+        replayWindow.put(distance, packet);
+        return true;
+    }
+
+    /**
+     * Take the first data packet, in sequence order, of the packets buffered
+     * with {@link #bufferDataPacket(KtnDatagram)} and not taken yet. Unlike
+     * the packets of a byte stream, the packet is taken even if packets before
+     * it are still missing, so that a lost packet on one stream does not hold
+     * up the others; the caller puts the packets of each stream in order, see
+     * {@link #isTakenBefore(int)}.
+     * 
+     * @return the packet, or null if none has arrived.
+     */
+    protected synchronized KtnDatagram nextBufferedPacket() {
+        KtnDatagram packet = replayWindow.take();
+        if (packet != null) nextExpectedSeqNo = seqAfter(nextExpectedSeqNo, replayWindow.slide());
+        return packet;
+    }
+
+    /**
+     * @param seq
+     *            a sequence number.
+     * @return true if every data packet before seq has been taken with
+     *         {@link #nextBufferedPacket()}.
+     */
+    protected synchronized boolean isTakenBefore(int seq) {
+        return seqDistance(nextExpectedSeqNo, seq) <= 0;
     }
 
     /**
@@ -0,0 +1,65 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * The congestion control of TCP Reno (RFC 5681), counted in packets: the
+ * window starts small and doubles every round trip (slow start) up to the
+ * slow start threshold, and then grows by one packet per round trip
+ * (additive increase). A loss found by duplicate ACKs halves the window, and
+ * a retransmission timeout takes it back to one packet and starts slow start
+ * again (multiplicative decrease). Senders sharing a lossy network thereby
+ * back off instead of making the loss worse with retransmissions.
+ *
+ * @see CongestionController
+ */
+public class AimdController implements CongestionController {
+
+    /** The window of a new connection, in packets. */
+    protected final static int INITIAL_WINDOW = 2;
+
+    /** The smallest slow start threshold set after a loss. */
+    protected final static int MIN_THRESHOLD = 2;
+
+    /** The congestion window, in packets; fractions count towards growth. */
+    private double window;
+
+    /** Window size at which slow start ends. */
+    private double threshold;
+
+    /**
+     * Create a controller for a new connection.
+     */
+    public AimdController() {
+        window = INITIAL_WINDOW;
+        threshold = Integer.MAX_VALUE;
+    }
+
+    public int getWindow() {
+        return Math.max(1, (int)window);
+    }
+
+    public void acked(int acked) {
+        if (window < threshold) {
+            window += acked;
+        }
+        else {
+            window += (double)acked / window;
+        }
+    }
+
+    public void lost() {
+        threshold = Math.max(window / 2, MIN_THRESHOLD);
+        window = threshold;
+    }
+
+    public void timedOut() {
+        threshold = Math.max(window / 2, MIN_THRESHOLD);
+        window = 1;
+    }
+
+    /**
+     * @return the slow start threshold, in packets.
+     */
+    public int getThreshold() {
+        return (int)Math.min(threshold, Integer.MAX_VALUE);
+    }
+}
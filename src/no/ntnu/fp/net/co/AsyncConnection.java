@@ -0,0 +1,66 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link Connection} that can also be used without blocking: every method
+ * returns at once with a future that is completed when the operation is done.
+ * A server can then serve many connections with a few threads, instead of one
+ * receiving thread per connection. <br>
+ * <br>
+ * The futures are completed by the threads that handle the network for the
+ * connection. Callbacks added to them with e.g.
+ * {@link CompletableFuture#thenAccept(java.util.function.Consumer)} may run on
+ * those threads, and must not block, e.g. by calling the blocking methods of
+ * {@link Connection}. Use the asynchronous variants (e.g.
+ * {@link CompletableFuture#thenAcceptAsync(java.util.function.Consumer)}) for
+ * callbacks that do. <br>
+ * <br>
+ * A failed operation completes its future exceptionally, with the exception
+ * the blocking method would have thrown.
+ *
+ * @see Connection
+ */
+public interface AsyncConnection extends Connection {
+
+    /**
+     * Listens for a connection to be made to this Connection and accepts it,
+     * without blocking.
+     *
+     * @return a future completed with the new connection once it is
+     *         established, see {@link Connection#accept()}.
+     */
+    public CompletableFuture<AsyncConnection> acceptAsync();
+
+    /**
+     * Send a message to a remote instance, without blocking. Messages are sent
+     * in the order the calls are made, also when mixed with
+     * {@link Connection#send(String)}.
+     *
+     * @param msg
+     *            the message to be sent
+     * @return a future completed when the message has been sent as far as
+     *         {@link Connection#send(String)} would have sent it before
+     *         returning.
+     */
+    public CompletableFuture<Void> sendAsync(String msg);
+
+    /**
+     * Asynchronous receive of a message from remote instance. Calls are
+     * served in order: the first future gets the first message.
+     *
+     * @return a future completed with the received message, or with an
+     *         {@link java.io.EOFException} if the remote instance closed the
+     *         connection.
+     */
+    public CompletableFuture<String> receiveAsync();
+
+    /**
+     * Close the connection without blocking.
+     *
+     * @return a future completed once the remote instance has been told, and
+     *         has answered, see {@link Connection#close()}.
+     */
+    public CompletableFuture<Void> closeAsync();
+
+}
@@ -0,0 +1,200 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The incoming side of {@link Transport#POOLED}: listens on a port, accepts
+ * the channels of the {@link ChannelPool}s sending to it, and reads the
+ * frames arriving on all of them. <br>
+ * <br>
+ * All the channels are watched with one {@link Selector}, by the thread
+ * calling {@link #receive()}: the {@link PacketDemultiplexer} of the port. No
+ * thread is started for a channel, and a channel stays open for as long as
+ * the other side keeps it.
+ */
+class ChannelListener {
+
+    /** Initial size of the read buffer of a channel. */
+    private final static int BUFFER = 4096;
+
+    private final int port;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+
+    /** Packets read but not yet returned by {@link #receive()}. */
+    private final LinkedList<KtnDatagram> received = new LinkedList<KtnDatagram>();
+
+    /** Set by {@link #close()}. */
+    private volatile boolean closed;
+
+    /**
+     * Start listening on a port.
+     *
+     * @param port
+     *            the port.
+     * @throws IOException
+     *             if unable to listen on the port.
+     */
+    ChannelListener(int port) throws IOException {
+        this.port = port;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the port listened on.
+     */
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * Wait for a packet on any of the channels. Only one thread may call this
+     * at a time.
+     *
+     * @return the packet, or null once closed.
+     * @throws IOException
+     *             if unable to wait for the channels.
+     */
+    KtnDatagram receive() throws IOException {
+        try {
+            while (received.isEmpty()) {
+                if (closed) {
+                    release();
+                    return null;
+                }
+                // An interrupt would make every select return at once.
+                Thread.interrupted();
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else if (key.isReadable()) read(key);
+                }
+            }
+            return received.removeFirst();
+        }
+        catch (ClosedSelectorException e) {
+            return null;
+        }
+    }
+
+    /** Accept a channel, and start watching it. */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(BUFFER));
+    }
+
+    /**
+     * Read what has arrived on a channel, and add the frames completed by it
+     * to {@link #received}. A channel closed by the other side, or sending
+     * something that is not a frame, is closed.
+     */
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        ByteBuffer buffer = (ByteBuffer)key.attachment();
+        try {
+            if (channel.read(buffer) < 0) {
+                drop(key);
+                return;
+            }
+            buffer.flip();
+            while (buffer.remaining() >= ChannelPool.FRAME_HEADER) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 0 || length > ChannelPool.MAX_FRAME) {
+                    Log.writeToLog("Bad frame length " + length + ", closing channel",
+                            "ChannelListener");
+                    drop(key);
+                    return;
+                }
+                if (buffer.remaining() < ChannelPool.FRAME_HEADER + length) break;
+                int end = buffer.position() + ChannelPool.FRAME_HEADER + length;
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(buffer.position() + ChannelPool.FRAME_HEADER).limit(end);
+                buffer.position(end);
+                try {
+                    received.add(DatagramCodec.decode(frame));
+                }
+                catch (IOException e) {
+                    Log.writeToLog("Dropped a frame: " + e.getMessage(), "ChannelListener");
+                }
+            }
+            if (buffer.remaining() >= ChannelPool.FRAME_HEADER) {
+                // Make room for the rest of a frame longer than the buffer.
+                int needed = ChannelPool.FRAME_HEADER + buffer.getInt(buffer.position());
+                if (needed > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Integer.highestOneBit(needed) << 1);
+                    larger.put(buffer);
+                    key.attach(larger);
+                    return;
+                }
+            }
+            buffer.compact();
+        }
+        catch (IOException e) {
+            drop(key);
+        }
+    }
+
+    /** Stop watching a channel, and close it. */
+    private void drop(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException e) {
+            // Closed anyway.
+        }
+    }
+
+    /**
+     * Stop listening, so that the port can be listened on again at once. A
+     * receive going on returns null.
+     */
+    void close() {
+        closed = true;
+        try {
+            server.close();
+        }
+        catch (IOException e) {
+            Log.writeToLog("Unable to close port " + port + ": " + e.getMessage(), "ChannelListener");
+        }
+        selector.wakeup();
+    }
+
+    /** Close the accepted channels and the selector, once closed. */
+    private void release() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,232 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The outgoing side of {@link Transport#POOLED}: one persistent TCP channel
+ * to every address and port packets are sent to. <br>
+ * <br>
+ * {@link ClSocket} connects, sends one packet and closes again for every
+ * packet, so each packet costs a three-way handshake and a teardown. Here the
+ * channel to a destination is made by the first packet sent there, and kept
+ * for the packets after it, until nothing has been sent on it for
+ * {@link #IDLE_TIMEOUT} ms. Idle channels are closed by a sweep on the shared
+ * {@link TimerWheel}. <br>
+ * <br>
+ * Each packet is written as a frame: its length in 4 bytes, followed by the
+ * packet as written by {@link DatagramCodec}, into a buffer kept with the
+ * channel. The other side reads the frames with a {@link ChannelListener}.
+ * The layer above must not rely on a packet arriving: if the other side has
+ * stopped listening, a packet written on the old channel is lost, and the
+ * next send finds the channel broken and connects again.
+ */
+class ChannelPool {
+
+    /** Milliseconds a channel is kept without being used. */
+    final static int IDLE_TIMEOUT = 30000;
+
+    /** Milliseconds to wait for a connect to succeed. */
+    final static int CONNECT_TIMEOUT = 2000;
+
+    /** The largest frame a {@link ChannelListener} accepts. */
+    final static int MAX_FRAME = 1 << 20;
+
+    /** Bytes of the length in front of every frame. */
+    final static int FRAME_HEADER = 4;
+
+    private static ChannelPool shared;
+
+    /** The channels, by destination, see {@link #key(KtnDatagram)}. */
+    private final ConcurrentMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+
+    /** Set while a sweep for idle channels is scheduled. */
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * @return the pool the connections send with.
+     */
+    static synchronized ChannelPool getShared() {
+        if (shared == null) shared = new ChannelPool();
+        return shared;
+    }
+
+    /**
+     * Send a packet on the channel to its destination, connecting first if
+     * there is none. A channel that turns out to be broken is connected again
+     * once.
+     *
+     * @param packet
+     *            the packet to send. Its checksum field is not used:
+     *            {@link DatagramCodec} writes a checksum of its own.
+     * @throws IOException
+     *             if unable to connect to the destination, or to write.
+     */
+    void send(KtnDatagram packet) throws IOException {
+        String key = key(packet);
+        while (true) {
+            Channel channel = channels.get(key);
+            if (channel == null) {
+                Channel created = new Channel(packet.getDest_addr(), packet.getDest_port());
+                channel = channels.putIfAbsent(key, created);
+                if (channel == null) channel = created;
+                scheduleSweep();
+            }
+            if (channel.send(packet)) return;
+            // Evicted in the meantime; make a new one.
+            channels.remove(key, channel);
+        }
+    }
+
+    /** @return the key of a packet's destination in {@link #channels}. */
+    private static String key(KtnDatagram packet) {
+        return packet.getDest_addr() + ":" + packet.getDest_port();
+    }
+
+    /** Make sure a sweep is coming, unless one already is. */
+    private void scheduleSweep() {
+        if (!sweeping.compareAndSet(false, true)) return;
+        TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, IDLE_TIMEOUT / 2, this);
+    }
+
+    /**
+     * Close and remove the channels that have not been used for
+     * {@link #IDLE_TIMEOUT} ms, and sweep again later while any are left.
+     */
+    private void sweep() {
+        long idleSince = System.currentTimeMillis() - IDLE_TIMEOUT;
+        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+            if (entry.getValue().evictIfIdle(idleSince)) {
+                channels.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        sweeping.set(false);
+        if (!channels.isEmpty()) scheduleSweep();
+    }
+
+    /** A channel to one destination, and the buffer frames are written in. */
+    private static class Channel {
+
+        private final String address;
+        private final int port;
+
+        /** The connected channel, or null until connected. */
+        private SocketChannel socket;
+
+        /** Frames are written here before they are sent. */
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+
+        /** Time of the latest send. */
+        private long lastUsed = System.currentTimeMillis();
+
+        /** Set once closed by the sweep: the channel must not be used again. */
+        private boolean evicted;
+
+        Channel(String address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        /**
+         * Send a packet, connecting first if not connected, and once more if
+         * a channel used before fails.
+         *
+         * @return false if the channel has been evicted, and nothing was sent.
+         */
+        synchronized boolean send(KtnDatagram packet) throws IOException {
+            if (evicted) return false;
+            lastUsed = System.currentTimeMillis();
+            frame(packet);
+            boolean reused = socket != null;
+            try {
+                if (!reused) connect();
+                write();
+            }
+            catch (IOException e) {
+                close();
+                if (!reused) throw e;
+                buffer.rewind();
+                connect();
+                try {
+                    write();
+                }
+                catch (IOException ex) {
+                    close();
+                    throw ex;
+                }
+            }
+            return true;
+        }
+
+        /** Write a packet as a frame into {@link #buffer}, ready to be sent. */
+        private void frame(KtnDatagram packet) {
+            int size = FRAME_HEADER + DatagramCodec.maxSize(packet);
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+            }
+            buffer.clear();
+            buffer.position(FRAME_HEADER);
+            DatagramCodec.encode(packet, buffer);
+            buffer.putInt(0, buffer.position() - FRAME_HEADER);
+            buffer.flip();
+        }
+
+        private void connect() throws IOException {
+            SocketChannel socket = SocketChannel.open();
+            try {
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                socket.socket().connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            this.socket = socket;
+        }
+
+        private void write() throws IOException {
+            while (buffer.hasRemaining()) {
+                socket.write(buffer);
+            }
+        }
+
+        private void close() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                Log.writeToLog("Unable to close channel to " + address + ":" + port + ": "
+                        + e.getMessage(), "ChannelPool");
+            }
+            socket = null;
+        }
+
+        /**
+         * Close the channel if it has not been used since the given time.
+         *
+         * @return true if it was closed.
+         */
+        synchronized boolean evictIfIdle(long idleSince) {
+            if (lastUsed > idleSince) return false;
+            evicted = true;
+            close();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Decides how many data packets a connection may have in flight, from what
+ * the {@link SendWindow} learns about the network: packets being
+ * acknowledged, and packets being lost. The send window never has more
+ * packets in flight than {@link #getWindow()}, nor more than its own size. <br>
+ * <br>
+ * The methods are called by the send window while it is locked, so an
+ * implementation used by one connection needs no locking of its own. Each
+ * connection needs its own instance.
+ *
+ * @see AimdController
+ * @see AbstractConnection#setCongestionController(CongestionController)
+ */
+public interface CongestionController {
+
+    /**
+     * @return the number of packets that may be in flight, at least 1.
+     */
+    public int getWindow();
+
+    /**
+     * Called when an ACK removes packets from the send window while it had
+     * {@link #getWindow()} packets in flight. ACKs that arrive while the
+     * sender has less to send say nothing about a larger window, and are not
+     * passed on.
+     *
+     * @param acked
+     *            the number of packets removed.
+     */
+    public void acked(int acked);
+
+    /**
+     * Called when a lost packet is found from duplicate ACKs and retransmitted
+     * at once, see {@link SendWindow#DUPLICATE_ACKS}. Packets sent after it
+     * are still getting through.
+     */
+    public void lost();
+
+    /**
+     * Called when a retransmission timer expires, once per loss event. Nothing
+     * is getting through, so this is the stronger signal.
+     */
+    public void timedOut();
+
+}
@@ -1,6 +1,7 @@
 package no.ntnu.fp.net.co;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 /**
  * Interface that defines the methods a Connection implementation must support.
@@ -25,6 +26,26 @@ public interface Connection {
     public void connect(InetAddress remoteAddress, int remotePort) throws java.io.IOException,
             java.net.SocketTimeoutException;
 
+    /**
+     * Connects to a remote instance, and sends it a first message. The message
+     * may travel with the connection request, so that the remote instance has
+     * it one round trip sooner than if it were sent by {@link #send(String)}
+     * after connecting.
+     * 
+     * @param remoteAddress
+     *            address of remote instance
+     * @param remotePort
+     *            port remote instance is listening to
+     * @param firstMessage
+     *            the first message to be sent, or null for none
+     * @throws java.io.IOException
+     *             if an I/O error occurs during the connection
+     * @throws java.net.SocketTimeoutException
+     *             if timeout expires before connection is completed.
+     */
+    public void connect(InetAddress remoteAddress, int remotePort, String firstMessage)
+            throws java.io.IOException, java.net.SocketTimeoutException;
+
     /**
      * Listens for a connection to be made to this Connection and accepts it.
      * 
@@ -59,6 +80,40 @@ public interface Connection {
      */
     public String receive() throws java.net.ConnectException, java.io.IOException;
 
+    /**
+     * Send a binary message to a remote instance. The bytes are sent as they
+     * are, without being turned into a String.
+     * 
+     * @param msg
+     *            the message to be sent: the bytes from its position to its
+     *            limit. The position is moved to the limit.
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(ByteBuffer msg) throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Synchronous receive of a message from remote instance into a buffer.
+     * Blocks until a message is received. Messages are received in the order
+     * they were sent, whichever send method sent them: a message sent as a
+     * String is received as its UTF-8 bytes, and {@link #receive()} returns a
+     * binary message decoded as UTF-8.
+     * 
+     * @param dst
+     *            the buffer to put the message in, from its position.
+     * @return the number of bytes in the message
+     * @throws java.nio.BufferOverflowException
+     *             if the message does not fit in the buffer. The message is
+     *             kept, and returned by the next receive.
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when receiving
+     */
+    public int receive(ByteBuffer dst) throws java.net.ConnectException, java.io.IOException;
+
     /**
      * Closes this connection
      * 
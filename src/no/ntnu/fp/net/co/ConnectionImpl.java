@@ -3,15 +3,32 @@
  */
 package no.ntnu.fp.net.co;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.BindException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 import no.ntnu.fp.net.admin.Log;
@@ -25,18 +42,197 @@ import no.ntnu.fp.net.cl.KtnDatagram.Flag;
  * <br>
  * This class implements the behaviour in the methods specified in the interface
  * {@link Connection} over the unreliable, connectionless network realised in
- * {@link ClSocket}. The base class, {@link AbstractConnection} implements some
- * of the functionality, leaving message passing and error handling to this
- * implementation.
+ * {@link ClSocket}, or over UDP or pooled channels, see {@link Transport}. The
+ * base class, {@link AbstractConnection} implements some of the functionality,
+ * leaving message passing and error handling to this implementation. <br>
+ * <br>
+ * The asynchronous methods of {@link AsyncConnection} do not use threads of
+ * their own: their futures are completed by the workers of the
+ * {@link TimerWheel}, when the packets they wait for have been delivered by
+ * the {@link PacketDemultiplexer}, and when something has to be
+ * retransmitted. <br>
+ * <br>
+ * Besides the main stream of messages used by the methods of
+ * {@link Connection}, a connection can carry any number of other logical
+ * streams, see {@link #openStream()}, {@link #acceptStream()} and
+ * {@link ConnectionStream}. Each stream keeps the order of its own messages,
+ * and a long message on one stream does not hold up the others. <br>
+ * <br>
+ * {@link #close()} returns at once: the FIN exchange goes on in the
+ * background, driven by the {@link TimerWheel}, see {@link #closeAsync()}.
  * 
  * @author Sebjrn Birkeland and Stein Jakob Nordb
  * @see no.ntnu.fp.net.co.Connection
  * @see no.ntnu.fp.net.cl.ClSocket
  */
-public class ConnectionImpl extends AbstractConnection {
+public class ConnectionImpl extends AbstractConnection implements AsyncConnection {
+
+    /** Lowest port handed out to connections created by accept(). */
+    private final static int FIRST_ALLOCATED_PORT = 10000;
+
+    /** Number of ports handed out to connections created by accept(). */
+    private final static int ALLOCATED_PORT_RANGE = 50000;
+
+    /**
+     * Milliseconds the port of a closed connection is kept before it is handed
+     * out again: twice the longest wait for an internal packet, as TCP keeps a
+     * connection in TIME_WAIT for twice the maximum segment lifetime.
+     */
+    private final static int PORT_QUARANTINE = 2 * TIMEOUT;
+
+    /**
+     * The ports handed out to connections created by accept(). The ports
+     * given to the constructor are marked as used too. Ports are a resource of
+     * the host, so every listening connection shares the same ports.
+     */
+    private final static PortAllocator ports = new PortAllocator(FIRST_ALLOCATED_PORT,
+            ALLOCATED_PORT_RANGE, PORT_QUARANTINE);
+
+    /** Number of times a SYN, SYN_ACK or FIN is sent before giving up. */
+    private final static int MAX_TRIES = 4;
+
+    /** Number of SYNs remembered by a listening connection, see {@link #openedFor}. */
+    private final static int MAX_SYNS = 256;
+
+    /** Default of {@link #setBacklog(int)}. */
+    public final static int DEFAULT_BACKLOG = 50;
+
+    /** Default of {@link #setLinger(int)}: close() does not wait. */
+    public final static int DEFAULT_LINGER = 0;
+
+    /**
+     * Milliseconds the JVM waits on exit for the closes still going on, see
+     * {@link #pendingCloses}: about as long as a close used to block.
+     */
+    private final static int EXIT_LINGER = MAX_TRIES * TIMEOUT;
+
+    /**
+     * Connections whose FIN exchange is still going on, see
+     * {@link #closeAsync()}. On exit, the JVM waits for them for up to
+     * {@link #EXIT_LINGER}, so that an application may close its connections
+     * and exit at once without leaving the other side waiting for a FIN.
+     */
+    private final static Set<ConnectionImpl> pendingCloses = Collections.synchronizedSet(new HashSet<ConnectionImpl>());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("ConnectionImpl closes") {
+            public void run() {
+                awaitPendingCloses();
+            }
+        });
+    }
+
+    /** Binary messages are given to {@link #receive()} as text in this encoding, and the other way around. */
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The streams that are open, by number, see {@link Inbound}. The main
+     * stream is always there.
+     */
+    private final Map<Integer, Inbound> streams;
+
+    /** Streams opened by the other side, not yet returned by {@link #acceptStream()}. */
+    private final LinkedList<ConnectionStream> openedStreams = new LinkedList<ConnectionStream>();
+
+    /** Futures from {@link #acceptStreamAsync()} waiting for a stream, in order. */
+    private final LinkedList<CompletableFuture<ConnectionStream>> streamAcceptors = new LinkedList<CompletableFuture<ConnectionStream>>();
+
+    /**
+     * Number of the next stream opened by this side. Odd on the side that
+     * connected and even on the side that accepted, so that both sides can
+     * open streams without asking the other.
+     */
+    private int nextStream;
+
+    /** The highest numbered stream the other side has opened so far. */
+    private int lastRemoteStream;
+
+    /**
+     * Number of data packets taken from the connection whose data has not been
+     * read yet, on every stream, see {@link #getUnreadPackets()}. Only changed
+     * while holding {@link #receiveLock}.
+     */
+    private volatile int unreadPackets;
+
+    /**
+     * Set when a message taken from a stream has made room in the receive
+     * buffer, and the other side may need to hear about it, see
+     * {@link #sendWindowUpdate()}. Only used while holding
+     * {@link #receiveLock}.
+     */
+    private boolean windowUpdateDue;
+
+    /**
+     * Number of threads waiting on {@link #receiveLock} in a blocking receive.
+     * They are notified whenever a packet arrives.
+     */
+    private int blockedReceivers;
+
+    /**
+     * Held while taking a message from the received packets, i.e. while using
+     * {@link #streams} and the other stream fields.
+     */
+    private final Object receiveLock = new Object();
+
+    /**
+     * Futures from {@link #acceptAsync()} waiting for a connection, in order.
+     * Used as the lock of the backlog: {@link #accepted}, {@link #halfOpen}
+     * and {@link #backlog}.
+     */
+    private final LinkedList<CompletableFuture<AsyncConnection>> acceptors = new LinkedList<CompletableFuture<AsyncConnection>>();
+
+    /**
+     * Connections established by this connection while listening, not yet
+     * returned by accept() or {@link #acceptAsync()}, in order.
+     */
+    private final LinkedList<ConnectionImpl> accepted = new LinkedList<ConnectionImpl>();
+
+    /** Number of handshakes in progress for this connection while listening. */
+    private int halfOpen;
+
+    /** The most connections kept while listening, see {@link #setBacklog(int)}. */
+    private int backlog = DEFAULT_BACKLOG;
+
+    /** Milliseconds close() waits for the FIN exchange, see {@link #setLinger(int)}. */
+    private int linger = DEFAULT_LINGER;
+
+    /** The close in progress, see {@link #closeAsync()}; null until it is called. */
+    private CompletableFuture<Void> closing;
+
+    /** Our FIN, once the close has sent it. */
+    private volatile KtnDatagram fin;
+
+    /** Number of transmissions of {@link #fin} so far. */
+    private int finTries;
+
+    /** Time of the first transmission of {@link #fin}. */
+    private long finSent;
+
+    /**
+     * The next retransmission of {@link #fin}, or the end of FIN_WAIT_2 or
+     * TIME_WAIT.
+     */
+    private TimerWheel.Timeout closeTimeout;
+
+    /**
+     * The connections made by this connection while listening, keyed by the
+     * sender and sequence number of their SYN (see {@link #synKey(KtnDatagram)}),
+     * so that a retransmitted SYN gets the SYN_ACK again instead of a
+     * connection of its own.
+     */
+    private final Map<String, ConnectionImpl> openedFor = boundedMap();
 
-    /** Keeps track of the used ports for each server port. */
-    private static Map<Integer, Boolean> usedPorts = Collections.synchronizedMap(new HashMap<Integer, Boolean>());
+    /** The SYN_ACK of a connection made by accept(), see {@link #openFor(KtnDatagram)}. */
+    private KtnDatagram synAck;
+
+    /** The handshake of a connection made by accept(), until it is established. */
+    private volatile Handshake handshake;
+
+    /**
+     * True while {@link #myPort} is marked as used in {@link #ports} on
+     * behalf of this connection, see {@link #releasePort()}.
+     */
+    private final AtomicBoolean ownsPort;
 
     /**
      * Initialise initial sequence number and setup state machine.
@@ -45,7 +241,43 @@ public class ConnectionImpl extends AbstractConnection {
      *            - the local port to associate with this connection
      */
     public ConnectionImpl(int myPort) {
-        throw new UnsupportedOperationException();
+        this(myPort, ports.reserve(myPort));
+    }
+
+    /**
+     * @param myPort
+     *            - the local port to associate with this connection
+     * @param ownsPort
+     *            - true if the port has been taken from {@link #ports} for
+     *            this connection.
+     */
+    private ConnectionImpl(int myPort, boolean ownsPort) {
+        super();
+        this.myPort = myPort;
+        this.myAddress = getIPv4Address();
+        this.streams = new HashMap<Integer, Inbound>();
+        this.streams.put(MAIN_STREAM, new Inbound());
+        this.ownsPort = new AtomicBoolean(ownsPort);
+    }
+
+    /**
+     * @return a synchronized map that forgets its oldest entries beyond
+     *         {@link #MAX_SYNS}.
+     */
+    private static <K, V> Map<K, V> boundedMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>() {
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > MAX_SYNS;
+            }
+        });
+    }
+
+    /**
+     * Give the port back to {@link #ports}, to be handed out again after the
+     * quarantine. Only the first call does anything.
+     */
+    private void releasePort() {
+        if (ownsPort.compareAndSet(true, false)) ports.quarantine(myPort);
     }
 
     private String getIPv4Address() {
@@ -72,17 +304,427 @@ public class ConnectionImpl extends AbstractConnection {
      */
     public void connect(InetAddress remoteAddress, int remotePort) throws IOException,
             SocketTimeoutException {
-        throw new UnsupportedOperationException();
+        connect(remoteAddress, remotePort, null);
+    }
+
+    /**
+     * Establish a connection to a remote location, and send a first message.
+     * The message is sent in the payload of the SYN if it fits in one packet
+     * (see {@link #MAX_FRAGMENT}), and is then received by the other side
+     * before any message sent after connecting. A longer message is sent once
+     * the connection is established.
+     * 
+     * @param remoteAddress
+     *            - the remote IP-address to connect to
+     * @param remotePort
+     *            - the remote portnumber to connect to
+     * @param firstMessage
+     *            - the first message to send, or null for none
+     * @throws IOException
+     *             If there's an I/O error.
+     * @throws java.net.SocketTimeoutException
+     *             If timeout expires before connection is completed.
+     * @see Connection#connect(InetAddress, int, String)
+     */
+    public void connect(InetAddress remoteAddress, int remotePort, String firstMessage)
+            throws IOException, SocketTimeoutException {
+        if (state != State.CLOSED) throw new ConnectException("Connection is already in use.");
+
+        this.remoteAddress = remoteAddress.getHostAddress();
+        this.remotePort = remotePort;
+
+        KtnDatagram syn = constructInternalPacket(Flag.SYN);
+        boolean early = firstMessage != null && firstMessage.length() <= MAX_FRAGMENT;
+        if (early) syn.setPayload(new Segment(firstMessage, false, false).encode());
+        state = State.SYN_SENT;
+        startReceiving();
+        KtnDatagram synAck = sendWithRetransmit(syn, Flag.SYN_ACK);
+        if (synAck == null) {
+            state = State.CLOSED;
+            stopReceiving();
+            throw new SocketTimeoutException("No SYN_ACK received from " + this.remoteAddress
+                    + ":" + remotePort);
+        }
+
+        // The server answers from the port it allocated for this connection.
+        this.remoteAddress = synAck.getSrc_addr();
+        this.remotePort = synAck.getSrc_port();
+        lastValidPacketReceived = synAck;
+        nextExpectedSeqNo = seqAfter(synAck.getSeq_nr(), 1);
+        nextStream = 1;
+        lastRemoteStream = 0;
+        sendAck(synAck, false);
+        state = State.ESTABLISHED;
+        startKeepAlive();
+        if (firstMessage != null && !early) send(firstMessage);
     }
 
     /**
-     * Listen for, and accept, incoming connections.
+     * Listen for, and accept, incoming connections. Once this has been called,
+     * handshakes are made as the SYNs arrive, see {@link #setBacklog(int)}:
+     * this returns the connection that was established first, and only waits
+     * if there is none.
      * 
      * @return A new ConnectionImpl-object representing the new connection.
+     * @throws ConnectException
+     *             if this connection is in use, or is closed while waiting.
      * @see Connection#accept()
      */
     public Connection accept() throws IOException, SocketTimeoutException {
-        throw new UnsupportedOperationException();
+        if (state != State.CLOSED && state != State.LISTEN)
+            throw new ConnectException("Connection is already in use.");
+        listen();
+
+        synchronized (acceptors) {
+            while (accepted.isEmpty()) {
+                if (state != State.LISTEN) throw new ConnectException("Connection closed.");
+                try {
+                    acceptors.wait();
+                }
+                catch (InterruptedException e) { /* do nothing */
+                }
+            }
+            return accepted.removeFirst();
+        }
+    }
+
+    /**
+     * Listen for, and accept, an incoming connection without blocking. The
+     * SYN_ACK is retransmitted from the timer thread, and the connection is
+     * established by the receiving thread when the ACK arrives.
+     * 
+     * @return A future completed with the new ConnectionImpl-object, see
+     *         {@link #accept()}.
+     * @see AsyncConnection#acceptAsync()
+     */
+    public CompletableFuture<AsyncConnection> acceptAsync() {
+        CompletableFuture<AsyncConnection> future = new CompletableFuture<AsyncConnection>();
+        if (state != State.CLOSED && state != State.LISTEN) {
+            future.completeExceptionally(new ConnectException("Connection is already in use."));
+            return future;
+        }
+        listen();
+
+        ConnectionImpl conn = null;
+        synchronized (acceptors) {
+            if (accepted.isEmpty()) acceptors.add(future);
+            else conn = accepted.removeFirst();
+        }
+        if (conn != null) future.complete(conn);
+        return future;
+    }
+
+    /**
+     * Set the most connections this connection keeps while listening:
+     * handshakes in progress, and connections established but not yet
+     * returned by {@link #accept()} or {@link #acceptAsync()}. The handshakes
+     * are made in parallel, as the SYNs arrive, so that a client whose
+     * SYN_ACK or ACK is lost does not hold up the others, and a burst of
+     * clients is connected in about one round trip. SYNs that arrive while
+     * the backlog is full are dropped, and get another chance when the other
+     * side retransmits them. The default is {@link #DEFAULT_BACKLOG}.
+     * 
+     * @param backlog
+     *            the number of connections, at least 1.
+     */
+    public void setBacklog(int backlog) {
+        if (backlog < 1) throw new IllegalArgumentException("Backlog must be at least 1.");
+        synchronized (acceptors) {
+            this.backlog = backlog;
+        }
+    }
+
+    /**
+     * Start listening, and make handshakes for the SYNs received so far.
+     */
+    private void listen() {
+        state = State.LISTEN;
+        startReceiving();
+        acceptSyns();
+    }
+
+    /**
+     * Start a handshake for every new SYN received, as long as the backlog has
+     * room, see {@link #setBacklog(int)}.
+     */
+    private void acceptSyns() {
+        while (true) {
+            ConnectionImpl conn;
+            synchronized (acceptors) {
+                KtnDatagram syn;
+                try {
+                    syn = pollPacket(true);
+                }
+                catch (EOFException e) {
+                    return; // Not thrown for internal packets.
+                }
+                if (syn == null) return;
+                if (!isNewSyn(syn)) continue;
+                if (halfOpen + accepted.size() >= backlog) {
+                    Log.writeToLog(syn, "Backlog full, SYN dropped", "ConnectionImpl");
+                    continue;
+                }
+                try {
+                    conn = openFor(syn);
+                }
+                catch (BindException e) {
+                    Log.writeToLog(syn, e.getMessage() + " SYN dropped", "ConnectionImpl");
+                    continue;
+                }
+                halfOpen++;
+            }
+
+            conn.handshake = conn.new Handshake(this);
+            conn.handshake.run();
+        }
+    }
+
+    /**
+     * Hand a connection whose handshake is done to the first future from
+     * {@link #acceptAsync()} waiting, or else queue it for the next accept.
+     */
+    private void established(ConnectionImpl conn) {
+        conn.startKeepAlive();
+        CompletableFuture<AsyncConnection> future = null;
+        synchronized (acceptors) {
+            halfOpen--;
+            if (acceptors.isEmpty()) {
+                accepted.add(conn);
+                acceptors.notifyAll();
+            }
+            else future = acceptors.removeFirst();
+        }
+        if (future != null) future.complete(conn);
+    }
+
+    /**
+     * Make room in the backlog after a handshake that failed.
+     */
+    private void handshakeFailed() {
+        synchronized (acceptors) {
+            halfOpen--;
+        }
+    }
+
+    /**
+     * @return true if a packet is a SYN for a new connection: not a
+     *         retransmission of a SYN a connection has already been made
+     *         for (see {@link #packetDelivered(KtnDatagram)}), even if that
+     *         connection has been closed since.
+     */
+    private boolean isNewSyn(KtnDatagram packet) {
+        if (packet.getFlag() != Flag.SYN) return false;
+        return !openedFor.containsKey(synKey(packet));
+    }
+
+    /**
+     * @return the sender and sequence number of a SYN, see {@link #openedFor}.
+     */
+    private static String synKey(KtnDatagram syn) {
+        return syn.getSrc_addr() + ":" + syn.getSrc_port() + ":" + syn.getSeq_nr();
+    }
+
+    /**
+     * Create the connection for a received SYN, on a port of its own, and
+     * take the first message sent with the SYN, if any (see
+     * {@link #connect(InetAddress, int, String)}). The connection is left in
+     * SYN_RCVD state, to send the SYN_ACK and wait for the ACK of it.
+     * 
+     * @throws BindException
+     *             if there is no free port for the connection.
+     */
+    private ConnectionImpl openFor(KtnDatagram syn) throws BindException {
+        int port = ports.allocate();
+        String payload = syn.getPayload() instanceof String ? (String)syn.getPayload() : "";
+        Segment first = payload.length() > 0 ? Segment.decode(payload) : null;
+
+        ConnectionImpl conn = new ConnectionImpl(port, true);
+        conn.remoteAddress = syn.getSrc_addr();
+        conn.remotePort = syn.getSrc_port();
+        conn.lastValidPacketReceived = syn;
+        conn.nextExpectedSeqNo = seqAfter(syn.getSeq_nr(), 1);
+        conn.nextStream = 2;
+        conn.lastRemoteStream = -1;
+        if (getKeepAliveInterval() > 0) {
+            conn.setKeepAlive(getKeepAliveInterval(), getKeepAliveProbes());
+        }
+        conn.state = State.SYN_RCVD;
+        conn.synAck = conn.constructInternalPacket(Flag.SYN_ACK);
+        conn.synAck.setAck(syn.getSeq_nr());
+        if (first != null && first.getStream() == MAIN_STREAM && !first.isEnd()) {
+            conn.takeSynData(syn, first);
+        }
+        conn.startReceiving();
+        openedFor.put(synKey(syn), conn);
+        return conn;
+    }
+
+    /**
+     * Take the first message sent with a SYN, as if it had come in a data
+     * packet with the sequence number of the SYN.
+     */
+    private void takeSynData(KtnDatagram syn, Segment segment) {
+        synchronized (receiveLock) {
+            Inbound main = streams.get(MAIN_STREAM);
+            main.held.put(syn.getSeq_nr(), segment);
+            main.packets++;
+            unreadPackets++;
+            release(main, MAIN_STREAM);
+        }
+    }
+
+    /**
+     * Send the SYN_ACK of a connection made by {@link #openFor(KtnDatagram)},
+     * once.
+     */
+    private void sendSynAck() {
+        try {
+            simplySendPacket(synAck);
+        }
+        catch (ClException e) {
+            Log.writeToLog(synAck, "ClException: " + e.getMessage(), "ConnectionImpl");
+        }
+        catch (IOException e) {
+            Log.writeToLog(synAck, e.getClass().getSimpleName() + ": " + e.getMessage(),
+                    "ConnectionImpl");
+        }
+    }
+
+    /**
+     * Give up a connection made by {@link #openFor(KtnDatagram)} whose
+     * SYN_ACK was never acked.
+     */
+    private void abandon() {
+        state = State.CLOSED;
+        stopReceiving();
+        releasePort();
+    }
+
+    /**
+     * The SYN_ACK half of a handshake started by a listening connection: sends
+     * the SYN_ACK, and retransmits it from the timer thread until the ACK
+     * arrives (see {@link #acked()}) or {@link #MAX_TRIES} transmissions have
+     * been made, like {@link #sendWithRetransmit(KtnDatagram, Flag)} and
+     * {@link #transmitFin()}.
+     */
+    private class Handshake implements Runnable {
+
+        /** The listening connection to hand the connection to. */
+        private final ConnectionImpl listener;
+
+        /** Number of transmissions so far. */
+        private int tries;
+
+        /** True once the handshake has succeeded or failed. */
+        private boolean finished;
+
+        /** Time of the last transmission. */
+        private long sent;
+
+        private TimerWheel.Timeout timeout;
+
+        private Handshake(ConnectionImpl listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Send the SYN_ACK, or give up if it has been sent often enough.
+         */
+        public void run() {
+            synchronized (this) {
+                if (finished) return;
+                if (tries == MAX_TRIES) finished = true;
+                else {
+                    if (tries > 0) rttEstimator.backoff();
+                    tries++;
+                    sent = System.currentTimeMillis();
+                    timeout = TimerWheel.getShared().schedule(this, getRetransmitTimeout(),
+                            ConnectionImpl.this);
+                }
+            }
+            if (finished) {
+                abandon();
+                handshake = null;
+                Log.writeToLog("No ACK received for SYN_ACK to " + remoteAddress + ":"
+                        + remotePort, "ConnectionImpl");
+                listener.handshakeFailed();
+                return;
+            }
+            sendSynAck();
+        }
+
+        /**
+         * Establish the connection if the ACK of the SYN_ACK has arrived.
+         * Other internal packets are dropped.
+         */
+        private void acked() {
+            KtnDatagram packet;
+            try {
+                while ((packet = pollPacket(true)) != null) {
+                    if (packet.getFlag() == Flag.ACK && packet.getAck() == synAck.getSeq_nr()) break;
+                }
+            }
+            catch (EOFException e) {
+                return; // Not thrown for internal packets.
+            }
+            if (packet == null) return;
+
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+                timeout.cancel();
+                if (tries == 1) rttEstimator.addSample(System.currentTimeMillis() - sent);
+            }
+            state = State.ESTABLISHED;
+            handshake = null;
+            listener.established(ConnectionImpl.this);
+        }
+    }
+
+    /**
+     * Send an internal packet and retransmit it until the expected reply
+     * arrives, or {@link #MAX_TRIES} transmissions have been made. The round
+     * trip time estimate is updated from replies to the first transmission,
+     * and backed off when no reply arrives. <br>
+     * <br>
+     * A SYN is retransmitted after the retransmission timeout, plus up to half
+     * of it at random, so that clients whose SYNs were lost together (e.g. by
+     * arriving at the same time) do not retransmit them together.
+     * 
+     * @param packet
+     *            the SYN to send.
+     * @param expected
+     *            the flag of the reply to wait for.
+     * @return the reply acking the packet, or null if none arrived.
+     */
+    private KtnDatagram sendWithRetransmit(KtnDatagram packet, Flag expected) throws IOException {
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            long sent = System.currentTimeMillis();
+            try {
+                simplySendPacket(packet);
+            }
+            catch (ClException e) {
+                Log.writeToLog(packet, "ClException: " + e.getMessage(), "ConnectionImpl");
+            }
+            catch (IOException e) {
+                // The other side is not listening, wait for the timeout.
+                Log.writeToLog(packet, e.getClass().getSimpleName() + ": " + e.getMessage(),
+                        "ConnectionImpl");
+            }
+
+            int rto = getRetransmitTimeout();
+            KtnDatagram reply = receiveAck(packet.getFlag() == Flag.SYN ? rto
+                    + (int)(Math.random() * rto / 2) : rto);
+            if (reply == null) {
+                rttEstimator.backoff();
+                continue;
+            }
+            if (reply.getFlag() == expected && reply.getAck() == packet.getSeq_nr()) {
+                if (tries == 0) rttEstimator.addSample(System.currentTimeMillis() - sent);
+                return reply;
+            }
+        }
+        return null;
     }
 
     /**
@@ -94,43 +736,1041 @@ public class ConnectionImpl extends AbstractConnection {
      *             If no connection exists.
      * @throws IOException
      *             If no ACK was received.
-     * @see AbstractConnection#sendDataPacketWithRetransmit(KtnDatagram)
+     * @see AbstractConnection#sendCoalesced(String)
      * @see no.ntnu.fp.net.co.Connection#send(String)
      */
     public void send(String msg) throws ConnectException, IOException {
-        throw new UnsupportedOperationException();
+        if (state != State.ESTABLISHED) throw new ConnectException("Connection is not established.");
+        sendCoalesced(msg);
+    }
+
+    /**
+     * Send a binary message from the application. It is never coalesced with
+     * other messages.
+     * 
+     * @param msg
+     *            - the bytes to be sent, from the position to the limit.
+     * @throws ConnectException
+     *             If no connection exists.
+     * @throws IOException
+     *             If no ACK was received.
+     * @see AbstractConnection#sendFragmented(ByteBuffer)
+     * @see no.ntnu.fp.net.co.Connection#send(ByteBuffer)
+     */
+    public void send(ByteBuffer msg) throws ConnectException, IOException {
+        if (state != State.ESTABLISHED) throw new ConnectException("Connection is not established.");
+        sendFragmented(msg);
+    }
+
+    /**
+     * Send a message from the application without blocking.
+     * 
+     * @param msg
+     *            - the String to be sent.
+     * @return A future completed when the message is in the send window, see
+     *         {@link #send(String)}.
+     * @see AbstractConnection#sendQueued(String)
+     * @see AsyncConnection#sendAsync(String)
+     */
+    public CompletableFuture<Void> sendAsync(String msg) {
+        if (state != State.ESTABLISHED) {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.completeExceptionally(new ConnectException("Connection is not established."));
+            return future;
+        }
+        return sendQueued(msg);
+    }
+
+    /**
+     * Send a message on a stream other than the main stream. Messages on
+     * streams are never coalesced.
+     * 
+     * @see ConnectionStream#send(String)
+     * @see AbstractConnection#sendFragmented(int, String)
+     */
+    void send(int stream, String msg) throws ConnectException, IOException {
+        if (state != State.ESTABLISHED) throw new ConnectException("Connection is not established.");
+        sendFragmented(stream, msg);
+    }
+
+    /**
+     * Send a binary message on a stream other than the main stream.
+     * 
+     * @see ConnectionStream#send(ByteBuffer)
+     * @see AbstractConnection#sendFragmented(int, ByteBuffer)
+     */
+    void send(int stream, ByteBuffer msg) throws ConnectException, IOException {
+        if (state != State.ESTABLISHED) throw new ConnectException("Connection is not established.");
+        sendFragmented(stream, msg);
+    }
+
+    /**
+     * Send a message on a stream other than the main stream without blocking.
+     * 
+     * @see ConnectionStream#sendAsync(String)
+     * @see AbstractConnection#sendQueued(int, String)
+     */
+    CompletableFuture<Void> sendAsync(int stream, String msg) {
+        if (state != State.ESTABLISHED) {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.completeExceptionally(new ConnectException("Connection is not established."));
+            return future;
+        }
+        return sendQueued(stream, msg);
     }
 
     /**
-     * Wait for incoming data.
+     * Wait for incoming data. A message sent in several fragments is returned
+     * once all of them have arrived. Messages sent together in a batch are
+     * returned one by one.
      * 
      * @return The received data's payload as a String.
      * @see Connection#receive()
-     * @see AbstractConnection#receivePacket(boolean)
-     * @see AbstractConnection#sendAck(KtnDatagram, boolean)
+     * @see AbstractConnection#acknowledgeData(KtnDatagram)
      */
     public String receive() throws ConnectException, IOException {
-        throw new UnsupportedOperationException();
+        return receive(MAIN_STREAM);
+    }
+
+    /**
+     * Wait for incoming data, and put it in a buffer. Binary messages are not
+     * copied on the way, only into the buffer.
+     * 
+     * @return The number of bytes received.
+     * @see Connection#receive(ByteBuffer)
+     * @see #receive()
+     */
+    public int receive(ByteBuffer dst) throws ConnectException, IOException {
+        return receive(MAIN_STREAM, dst);
+    }
+
+    /**
+     * Wait for a message on a stream.
+     * 
+     * @see ConnectionStream#receive()
+     */
+    String receive(int stream) throws ConnectException, IOException {
+        return toText(receiveMessage(stream, null));
+    }
+
+    /**
+     * Wait for a message on a stream, and put it in a buffer.
+     * 
+     * @see ConnectionStream#receive(ByteBuffer)
+     */
+    int receive(int stream, ByteBuffer dst) throws ConnectException, IOException {
+        if (dst == null) throw new IllegalArgumentException("Buffer can not be null.");
+        return ((ByteBuffer)receiveMessage(stream, dst)).remaining();
+    }
+
+    /**
+     * Open a new logical stream on this connection. Nothing is sent until the
+     * first message: the other side learns about the stream when it arrives,
+     * and gets it from {@link #acceptStream()}.
+     * 
+     * @return the new stream.
+     * @throws ConnectException
+     *             If the connection is not established.
+     */
+    public ConnectionStream openStream() throws ConnectException {
+        if (state != State.ESTABLISHED) throw new ConnectException("Connection is not established.");
+        synchronized (receiveLock) {
+            int stream = nextStream;
+            nextStream += 2;
+            streams.put(stream, new Inbound());
+            return new ConnectionStream(this, stream);
+        }
+    }
+
+    /**
+     * Wait for the other side to open a logical stream, see
+     * {@link #openStream()}. Streams are returned in the order they were
+     * opened.
+     * 
+     * @return the stream.
+     * @throws ConnectException
+     *             If the connection is not established.
+     * @throws EOFException
+     *             If the other side closed the connection.
+     */
+    public ConnectionStream acceptStream() throws ConnectException, IOException {
+        if (state != State.ESTABLISHED) throw new ConnectException("Connection is not established.");
+        synchronized (receiveLock) {
+            blockedReceivers++;
+            try {
+                while (openedStreams.isEmpty()) {
+                    if (!receiveNext()) awaitPacket();
+                }
+                return openedStreams.removeFirst();
+            }
+            finally {
+                blockedReceivers--;
+            }
+        }
+    }
+
+    /**
+     * Wait for the other side to open a logical stream without blocking.
+     * 
+     * @return A future completed with the stream, see {@link #acceptStream()}.
+     */
+    public CompletableFuture<ConnectionStream> acceptStreamAsync() {
+        CompletableFuture<ConnectionStream> future = new CompletableFuture<ConnectionStream>();
+        if (state != State.ESTABLISHED) {
+            future.completeExceptionally(new ConnectException("Connection is not established."));
+            return future;
+        }
+        synchronized (receiveLock) {
+            streamAcceptors.add(future);
+        }
+        completeReceives();
+        return future;
+    }
+
+    /**
+     * Wait for the next message on a stream.
+     * 
+     * @param stream
+     *            the stream.
+     * @param dst
+     *            null, or a buffer to put the message in. A message that does
+     *            not fit is kept for the next receive.
+     * @return The message: a String or a ByteBuffer, or, if dst is given, a
+     *         ByteBuffer whose remaining bytes are the ones put in dst.
+     * @throws BufferOverflowException
+     *             If the message does not fit in dst.
+     */
+    private Object receiveMessage(int stream, ByteBuffer dst) throws ConnectException, IOException {
+        if (state != State.ESTABLISHED) throw new ConnectException("Connection is not established.");
+
+        try {
+            synchronized (receiveLock) {
+                blockedReceivers++;
+                try {
+                    while (true) {
+                        Object msg = peekMessage(stream);
+                        if (msg != null && dst != null) {
+                            ByteBuffer bytes = toBytes(msg);
+                            if (bytes.remaining() > dst.remaining()) throw new BufferOverflowException();
+                            takeMessage(streams.get(stream));
+                            dst.put(bytes.duplicate());
+                            return bytes;
+                        }
+                        if (msg != null) return takeMessage(streams.get(stream));
+                        awaitPacket();
+                    }
+                }
+                finally {
+                    blockedReceivers--;
+                }
+            }
+        }
+        finally {
+            sendWindowUpdate();
+        }
+    }
+
+    /**
+     * Wait until a packet arrives, or something else happens to the streams
+     * (see {@link #blockedReceivers}). The caller must hold
+     * {@link #receiveLock}, and check again afterwards.
+     * 
+     * @throws ConnectException
+     *             If the connection has been closed.
+     */
+    private void awaitPacket() throws ConnectException {
+        if (state != State.ESTABLISHED) throw new ConnectException("Connection closed.");
+        try {
+            receiveLock.wait();
+        }
+        catch (InterruptedException e) { /* do nothing */
+        }
+    }
+
+    /**
+     * @return a message as a String, a binary message decoded as UTF-8.
+     */
+    private static String toText(Object msg) {
+        if (msg instanceof String) return (String)msg;
+        return UTF_8.decode(((ByteBuffer)msg).duplicate()).toString();
+    }
+
+    /**
+     * @return a message as bytes, a String encoded as UTF-8.
+     */
+    private static ByteBuffer toBytes(Object msg) {
+        if (msg instanceof ByteBuffer) return (ByteBuffer)msg;
+        return ByteBuffer.wrap(((String)msg).getBytes(UTF_8));
+    }
+
+    /**
+     * Wait for incoming data without blocking.
+     * 
+     * @return A future completed with the next message, see {@link #receive()}.
+     * @see AsyncConnection#receiveAsync()
+     */
+    public CompletableFuture<String> receiveAsync() {
+        return receiveAsync(MAIN_STREAM);
+    }
+
+    /**
+     * Wait for a message on a stream without blocking.
+     * 
+     * @see ConnectionStream#receiveAsync()
+     */
+    CompletableFuture<String> receiveAsync(int stream) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        if (state != State.ESTABLISHED) {
+            future.completeExceptionally(new ConnectException("Connection is not established."));
+            return future;
+        }
+        synchronized (receiveLock) {
+            Inbound inbound = streams.get(stream);
+            if (inbound == null) {
+                future.completeExceptionally(new ConnectException("Stream is closed."));
+                return future;
+            }
+            inbound.receivers.add(future);
+        }
+        completeReceives();
+        return future;
+    }
+
+    /**
+     * Hand the messages received so far to the futures from
+     * {@link #receiveAsync()} and {@link #acceptStreamAsync()} waiting for
+     * them, and wake the threads waiting in a blocking receive. Packets are
+     * only taken from the connection while there are futures waiting. The
+     * futures are completed after the lock is released, as they may run
+     * callbacks, and so is the window update, as it is sent over the network.
+     */
+    private void completeReceives() {
+        List<CompletableFuture<String>> completed = new ArrayList<CompletableFuture<String>>();
+        List<Object> messages = new ArrayList<Object>();
+        List<CompletableFuture<ConnectionStream>> acceptedFutures = new ArrayList<CompletableFuture<ConnectionStream>>();
+        List<ConnectionStream> accepted = new ArrayList<ConnectionStream>();
+        Map<CompletableFuture<?>, IOException> failed = new HashMap<CompletableFuture<?>, IOException>();
+        synchronized (receiveLock) {
+            while (true) {
+                boolean waiting = false;
+                for (Inbound inbound : streams.values()) {
+                    while (!inbound.receivers.isEmpty() && !inbound.messages.isEmpty()) {
+                        completed.add(inbound.receivers.removeFirst());
+                        messages.add(takeMessage(inbound));
+                    }
+                    if (!inbound.receivers.isEmpty() && inbound.ended) {
+                        IOException e = new EOFException("Stream closed by the other side.");
+                        for (CompletableFuture<String> future : inbound.receivers) {
+                            failed.put(future, e);
+                        }
+                        inbound.receivers.clear();
+                    }
+                    waiting |= !inbound.receivers.isEmpty();
+                }
+                while (!streamAcceptors.isEmpty() && !openedStreams.isEmpty()) {
+                    acceptedFutures.add(streamAcceptors.removeFirst());
+                    accepted.add(openedStreams.removeFirst());
+                }
+                waiting |= !streamAcceptors.isEmpty();
+                if (!waiting) break;
+
+                try {
+                    if (!receiveNext()) break;
+                }
+                catch (IOException e) {
+                    for (Inbound inbound : streams.values()) {
+                        for (CompletableFuture<String> future : inbound.receivers) {
+                            failed.put(future, e);
+                        }
+                        inbound.receivers.clear();
+                    }
+                    for (CompletableFuture<ConnectionStream> future : streamAcceptors) {
+                        failed.put(future, e);
+                    }
+                    streamAcceptors.clear();
+                    break;
+                }
+            }
+            if (blockedReceivers > 0) receiveLock.notifyAll();
+        }
+        sendWindowUpdate();
+        for (int i = 0; i < completed.size(); i++) {
+            completed.get(i).complete(toText(messages.get(i)));
+        }
+        for (int i = 0; i < accepted.size(); i++) {
+            acceptedFutures.get(i).complete(accepted.get(i));
+        }
+        for (Map.Entry<CompletableFuture<?>, IOException> entry : failed.entrySet()) {
+            entry.getKey().completeExceptionally(entry.getValue());
+        }
+    }
+
+    /**
+     * Find the next message on a stream in the data packets received so far,
+     * without blocking. The message is left on the stream, see
+     * {@link #takeMessage(Inbound)}. Messages for other streams found on the
+     * way are kept for them. The caller must hold {@link #receiveLock}.
+     * 
+     * @param stream
+     *            the stream.
+     * @return the message, a String or for a binary message a ByteBuffer, or
+     *         null if it has not arrived yet.
+     * @throws ConnectException
+     *             if the stream has been closed by this side.
+     * @throws EOFException
+     *             if the other side closed the stream or the connection, and
+     *             every message sent on the stream before that has been
+     *             returned.
+     */
+    private Object peekMessage(int stream) throws IOException {
+        while (true) {
+            Inbound inbound = streams.get(stream);
+            if (inbound == null) throw new ConnectException("Stream is closed.");
+            if (!inbound.messages.isEmpty()) return inbound.messages.getFirst();
+            if (inbound.ended) throw new EOFException("Stream closed by the other side.");
+            if (!receiveNext()) return null;
+        }
+    }
+
+    /**
+     * Remove the first message of a stream, as it is given to the
+     * application. This makes room in the receive buffer for the packets it
+     * came in, see {@link AbstractConnection#RECEIVE_BUFFER}. The caller must
+     * hold {@link #receiveLock}, and call {@link #sendWindowUpdate()} once it
+     * has released it.
+     * 
+     * @return the message.
+     */
+    private Object takeMessage(Inbound inbound) {
+        int packets = inbound.messagePackets.removeFirst();
+        inbound.packets -= packets;
+        unreadPackets -= packets;
+        if (packets > 0) windowUpdateDue = true;
+        return inbound.messages.removeFirst();
+    }
+
+    /**
+     * Tell the other side that the receive window has opened, if messages
+     * taken since the last call made room for it, see
+     * {@link #receiveWindowOpened()}. The caller must not hold
+     * {@link #receiveLock}: the ACK may take a while to send, and receives
+     * must not wait for it.
+     */
+    private void sendWindowUpdate() {
+        synchronized (receiveLock) {
+            if (!windowUpdateDue) return;
+            windowUpdateDue = false;
+        }
+        receiveWindowOpened();
+    }
+
+    /**
+     * @see AbstractConnection#getUnreadPackets()
+     */
+    protected int getUnreadPackets() {
+        return unreadPackets;
+    }
+
+    /**
+     * Take one data packet from the connection, without blocking: hand a
+     * buffered packet to its stream, or else buffer and acknowledge a newly
+     * arrived packet. Packets are taken as they arrive, and put in order per
+     * stream (see {@link #release(Inbound, int)}), so that a lost packet only
+     * holds up its own stream. The caller must hold {@link #receiveLock}.
+     * 
+     * @return false if there was no packet to take.
+     * @throws EOFException
+     *             if the other side closed the connection, and every packet
+     *             sent before that has been taken.
+     */
+    private boolean receiveNext() throws IOException {
+        KtnDatagram packet = nextBufferedPacket();
+        if (packet == null) {
+            packet = pollPacket(false);
+            if (packet == null) return false;
+            acceptDataPacket(packet);
+            return true;
+        }
+
+        lastValidPacketReceived = packet;
+        Segment segment = Segment.decode(packet);
+        int stream = segment.getStream();
+        Inbound inbound = inboundFor(stream);
+        if (inbound == null) {
+            Log.writeToLog(packet, "Data for a closed stream dropped.", "ConnectionImpl");
+        }
+        else {
+            inbound.held.put(stream == MAIN_STREAM ? packet.getSeq_nr() : segment.getStreamSeq(),
+                    segment);
+            inbound.packets++;
+            unreadPackets++;
+            release(inbound, stream);
+        }
+        // Taking a packet of another stream may fill the gap the main stream waits for.
+        Inbound main = streams.get(MAIN_STREAM);
+        if (main != null && main != inbound) release(main, MAIN_STREAM);
+        if (blockedReceivers > 0) receiveLock.notifyAll();
+        return true;
+    }
+
+    /**
+     * Add the held segments of a stream that are next in order to it. A
+     * segment on the main stream is next once every packet sent before it has
+     * been taken, as the main stream is ordered by sequence number; other
+     * streams number their own segments. The caller must hold
+     * {@link #receiveLock}.
+     */
+    private void release(Inbound inbound, int stream) {
+        while (!inbound.held.isEmpty()) {
+            int seq = inbound.held.firstKey();
+            if (stream == MAIN_STREAM ? !isTakenBefore(seq) : seq != inbound.nextSeq) return;
+            inbound.nextSeq = seq + 1;
+            int done = inbound.add(inbound.held.remove(seq));
+            inbound.packets -= done;
+            unreadPackets -= done;
+        }
+    }
+
+    /**
+     * Find the stream a received segment belongs to. The first segment of a
+     * stream opened by the other side opens it here too, along with the
+     * streams numbered below it that the other side has opened but not used
+     * yet. The caller must hold {@link #receiveLock}.
+     * 
+     * @return the stream, or null if it has been closed by this side.
+     */
+    private Inbound inboundFor(int stream) {
+        Inbound inbound = streams.get(stream);
+        if (inbound != null || stream % 2 == nextStream % 2 || stream <= lastRemoteStream) {
+            return inbound;
+        }
+        while (lastRemoteStream < stream) {
+            lastRemoteStream += 2;
+            inbound = new Inbound();
+            streams.put(lastRemoteStream, inbound);
+            openedStreams.add(new ConnectionStream(this, lastRemoteStream));
+        }
+        return inbound;
+    }
+
+    /**
+     * The receiving end of a stream: the segments that arrived early, the
+     * fragments of the message being received, the messages received and not
+     * yet returned, and the futures waiting for them. Guarded by
+     * {@link ConnectionImpl#receiveLock}.
+     */
+    private static class Inbound {
+
+        /**
+         * Segments waiting for segments sent before them, keyed by sequence
+         * number on the main stream and by number within the stream on other
+         * streams, in the order they were sent.
+         */
+        private final TreeMap<Integer, Segment> held =
+                new TreeMap<Integer, Segment>(ReplayWindow.ORDER);
+
+        /** The number of the next segment to add, see {@link #held}. */
+        private int nextSeq;
+
+        /**
+         * Number of packets whose data is on the stream: held, among the
+         * fragments, or in a message not yet returned.
+         */
+        private int packets;
+
+        /** Number of packets the fragments being received came in. */
+        private int fragmentPackets;
+
+        /** The fragments of the message being received, see {@link Segment}. */
+        private final StringBuilder fragments = new StringBuilder();
+
+        /** The fragments of the binary message being received. */
+        private final ByteArrayOutputStream byteFragments = new ByteArrayOutputStream();
+
+        /**
+         * Messages received and not yet returned, in order: a String, or a
+         * ByteBuffer for a binary message.
+         */
+        private final LinkedList<Object> messages = new LinkedList<Object>();
+
+        /**
+         * The number of packets each of the {@link #messages} came in. The
+         * messages of a batch after the first count as none.
+         */
+        private final LinkedList<Integer> messagePackets = new LinkedList<Integer>();
+
+        /** Futures from {@link ConnectionImpl#receiveAsync()} waiting for a message, in order. */
+        private final LinkedList<CompletableFuture<String>> receivers = new LinkedList<CompletableFuture<String>>();
+
+        /** True once the other side has ended the stream. */
+        private boolean ended;
+
+        /**
+         * Add a received segment: join it with the fragments before it, and
+         * add the message once it is complete. A batch (see
+         * {@link AbstractConnection#setNoDelay(boolean)}) adds each of its
+         * messages.
+         * 
+         * @return the number of packets whose data has been used up without
+         *         adding a message, e.g. by the end of the stream.
+         */
+        private int add(Segment segment) {
+            fragmentPackets++;
+            if (segment.isEnd()) {
+                ended = true;
+                return release();
+            }
+            if (segment.isBinary()) {
+                ByteBuffer data = segment.getBytes();
+                if (!segment.hasMore() && byteFragments.size() == 0) {
+                    addMessage(data);
+                    return 0;
+                }
+                byteFragments.write(data.array(), data.arrayOffset(), data.remaining());
+                if (segment.hasMore()) return 0;
+                addMessage(ByteBuffer.wrap(byteFragments.toByteArray()));
+                byteFragments.reset();
+                return 0;
+            }
+            if (segment.hasMore()) {
+                fragments.append(segment.getData());
+                return 0;
+            }
+            String msg = segment.getData();
+            if (fragments.length() > 0) {
+                msg = fragments.append(msg).toString();
+                fragments.setLength(0);
+            }
+            if (!segment.isBatch()) {
+                addMessage(msg);
+                return 0;
+            }
+
+            List<String> batch = Segment.split(msg);
+            if (batch == null) {
+                Log.writeToLog("Damaged batch dropped.", "ConnectionImpl");
+                return release();
+            }
+            for (String message : batch) {
+                addMessage(message);
+            }
+            return release();
+        }
+
+        /**
+         * Add a complete message, counting the packets of its fragments.
+         */
+        private void addMessage(Object msg) {
+            messages.add(msg);
+            messagePackets.add(fragmentPackets);
+            fragmentPackets = 0;
+        }
+
+        /**
+         * @return the number of packets of the fragments, now forgotten.
+         */
+        private int release() {
+            int released = fragmentPackets;
+            fragmentPackets = 0;
+            return released;
+        }
+    }
+
+    /**
+     * Buffer and acknowledge a received data packet, if it is valid.
+     */
+    private void acceptDataPacket(KtnDatagram packet) throws IOException {
+        if (isValid(packet) && bufferDataPacket(packet)) {
+            try {
+                acknowledgeData(packet);
+            }
+            catch (ConnectException e) {
+                // The packet will be retransmitted and acked again.
+                Log.writeToLog(packet, e.getMessage(), "ConnectionImpl");
+            }
+        }
+    }
+
+    /**
+     * Go on with the operations waiting for a packet: a SYN for a listening
+     * connection (or the SYN_ACK again, for a retransmitted SYN a connection
+     * has been made for), the ACK of our SYN_ACK for the handshake, the ACK
+     * of our FIN for a close, or data for a receive. A FIN is acked at once,
+     * whether or not the application has closed too, see
+     * {@link #finReceived(KtnDatagram)}.
+     * 
+     * @see AbstractConnection#packetDelivered(KtnDatagram)
+     */
+    protected void packetDelivered(KtnDatagram packet) {
+        Handshake pending = handshake;
+        if (packet.getFlag() == Flag.SYN && state == State.LISTEN) {
+            ConnectionImpl conn = openedFor.get(synKey(packet));
+            if (conn != null && conn.state != State.CLOSED) conn.sendSynAck();
+            acceptSyns();
+        }
+        else if (packet.getFlag() == Flag.ACK && pending != null) {
+            pending.acked();
+        }
+        else if (packet.getFlag() == Flag.ACK && fin != null) {
+            finAcked(packet);
+        }
+        else if (packet.getFlag() == Flag.FIN) {
+            finReceived(packet);
+            completeReceives();
+        }
+        else if (packet.getFlag() == Flag.NONE) {
+            completeReceives();
+        }
+    }
+
+    /**
+     * Fail the asynchronous receives once the other side has been given up,
+     * see {@link AbstractConnection#setKeepAlive(int, int)}.
+     */
+    protected void connectionLost() {
+        completeReceives();
     }
 
     /**
-     * Close the connection.
+     * Close the connection, and every stream on it, see {@link #closeAsync()}.
+     * Returns at once, unless a linger has been set with
+     * {@link #setLinger(int)}.
      * 
+     * @throws SocketTimeoutException
+     *             if the linger is set and the other side did not answer
+     *             within it.
      * @see Connection#close()
      */
     public void close() throws IOException {
-        throw new UnsupportedOperationException();
+        CompletableFuture<Void> done = closeAsync();
+        if (linger == 0) return;
+        try {
+            done.get(linger, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            // The close goes on in the background.
+        }
+        catch (InterruptedException e) { /* do nothing */
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Close the connection, and every stream on it, without blocking. New
+     * messages can no longer be sent, and the messages sent so far are
+     * delivered before the FIN is sent. The FIN is retransmitted from the
+     * timer thread until the other side acks it, which it does as soon as the
+     * FIN arrives. After that, the connection waits for the FIN of the other
+     * side in FIN_WAIT_2, and lingers in TIME_WAIT to ack it again should our
+     * ACK be lost, before the port is given back. A server closing many
+     * connections at once is thus done in about one round trip, not one
+     * timeout per connection. <br>
+     * <br>
+     * A connection whose other side has stopped answering keepalive probes
+     * (see {@link AbstractConnection#setKeepAlive(int, int)}) is closed at
+     * once, without a FIN. Calling this again returns the same future.
+     * 
+     * @return a future completed once both sides have sent their FIN and had
+     *         it acked, or with a {@link SocketTimeoutException} if the other
+     *         side stopped answering.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        synchronized (this) {
+            if (closing != null) return closing;
+            closing = new CompletableFuture<Void>();
+        }
+        flushDataAck();
+        if (isPeerLost()) {
+            Log.writeToLog("Closing a lost connection without a FIN", "ConnectionImpl");
+            release(null);
+        }
+        else if (state == State.ESTABLISHED) {
+            pendingCloses.add(this);
+            synchronized (this) {
+                if (disconnectRequest != null) state = State.CLOSE_WAIT;
+            }
+            drain();
+        }
+        else {
+            release(null);
+        }
+        return closing;
+    }
+
+    /**
+     * @param linger
+     *            milliseconds {@link #close()} waits for the FIN exchange to
+     *            end, at least 0. With 0, the default, it does not wait.
+     */
+    public void setLinger(int linger) {
+        if (linger < 0) throw new IllegalArgumentException("Linger must be at least 0.");
+        this.linger = linger;
+    }
+
+    /**
+     * @return milliseconds {@link #close()} waits for the FIN exchange, see
+     *         {@link #setLinger(int)}.
+     */
+    public int getLinger() {
+        return linger;
+    }
+
+    /**
+     * Send the FIN once every message sent so far has been acked, trying again
+     * every tick of the timer until then, see
+     * {@link AbstractConnection#drainSendWindow()}: FIN_WAIT_1, or LAST_ACK if
+     * the other side has sent its FIN already.
+     */
+    private void drain() {
+        if (!drainSendWindow()) {
+            TimerWheel.getShared().schedule(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, TimerWheel.TICK, this);
+            return;
+        }
+        synchronized (this) {
+            if (closing.isDone()) return;
+            fin = constructInternalPacket(Flag.FIN);
+            state = disconnectRequest == null ? State.FIN_WAIT_1 : State.LAST_ACK;
+        }
+        transmitFin();
+    }
+
+    /**
+     * Send the FIN, and retransmit it from the timer thread with backed off
+     * timeouts until it is acked (see {@link #finAcked(KtnDatagram)}) or
+     * {@link #MAX_TRIES} transmissions have been made.
+     */
+    private void transmitFin() {
+        boolean giveUp;
+        synchronized (this) {
+            if (state != State.FIN_WAIT_1 && state != State.LAST_ACK) return;
+            giveUp = finTries == MAX_TRIES;
+            if (!giveUp) {
+                if (finTries > 0) rttEstimator.backoff();
+                else finSent = System.currentTimeMillis();
+                finTries++;
+                closeTimeout = TimerWheel.getShared().schedule(new Runnable() {
+                    public void run() {
+                        transmitFin();
+                    }
+                }, getRetransmitTimeout(), this);
+            }
+        }
+        if (giveUp) {
+            release(new SocketTimeoutException("No ACK received for FIN."));
+            return;
+        }
+        try {
+            simplySendPacket(fin);
+        }
+        catch (ClException e) {
+            Log.writeToLog(fin, "ClException: " + e.getMessage(), "ConnectionImpl");
+        }
+        catch (IOException e) {
+            // The other side is not listening, wait for the timeout.
+            Log.writeToLog(fin, e.getClass().getSimpleName() + ": " + e.getMessage(),
+                    "ConnectionImpl");
+        }
+    }
+
+    /**
+     * Close a stream other than the main stream: messages that arrive on it
+     * from now on are dropped, and after the messages sent on it so far, the
+     * other side is told that it has ended.
+     * 
+     * @see ConnectionStream#close()
+     */
+    void closeStream(int stream) throws IOException {
+        List<CompletableFuture<String>> waiting;
+        synchronized (receiveLock) {
+            Inbound inbound = streams.remove(stream);
+            if (inbound == null) return;
+            unreadPackets -= inbound.packets;
+            waiting = new ArrayList<CompletableFuture<String>>(inbound.receivers);
+            if (blockedReceivers > 0) receiveLock.notifyAll();
+        }
+        for (CompletableFuture<String> future : waiting) {
+            future.completeExceptionally(new ConnectException("Stream closed."));
+        }
+        if (state == State.ESTABLISHED) endStream(stream);
+    }
+
+    /**
+     * Fail the futures from {@link #receiveAsync()}, {@link #acceptAsync()}
+     * and {@link #acceptStreamAsync()} still waiting, and wake the threads
+     * waiting in a blocking receive.
+     */
+    private void failWaiting(IOException e) {
+        List<CompletableFuture<?>> waiting = new ArrayList<CompletableFuture<?>>();
+        synchronized (receiveLock) {
+            for (Inbound inbound : streams.values()) {
+                waiting.addAll(inbound.receivers);
+                inbound.receivers.clear();
+            }
+            waiting.addAll(streamAcceptors);
+            streamAcceptors.clear();
+            receiveLock.notifyAll();
+        }
+        synchronized (acceptors) {
+            waiting.addAll(acceptors);
+            acceptors.clear();
+            acceptors.notifyAll();
+        }
+        for (CompletableFuture<?> future : waiting) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Go on with the close once the ACK of our FIN has arrived: closed from
+     * LAST_ACK, and from FIN_WAIT_1 on to TIME_WAIT if the other side has sent
+     * its FIN already, otherwise to FIN_WAIT_2 until it does.
+     * 
+     * @param packet
+     *            a received ACK.
+     */
+    private void finAcked(KtnDatagram packet) {
+        boolean closed;
+        synchronized (this) {
+            if (packet.getAck() != fin.getSeq_nr()
+                    || (state != State.FIN_WAIT_1 && state != State.LAST_ACK)) return;
+            closeTimeout.cancel();
+            if (finTries == 1) rttEstimator.addSample(System.currentTimeMillis() - finSent);
+            closed = state == State.LAST_ACK;
+            if (!closed && disconnectRequest != null) {
+                timeWait();
+            }
+            else if (!closed) {
+                state = State.FIN_WAIT_2;
+                closeTimeout = TimerWheel.getShared().schedule(new Runnable() {
+                    public void run() {
+                        if (state == State.FIN_WAIT_2)
+                            release(new SocketTimeoutException("No FIN received."));
+                    }
+                }, MAX_TRIES * getReceiveTimeout(), this);
+            }
+        }
+        if (closed) release(null);
+    }
+
+    /**
+     * Ack a FIN from the other side at once. Once the application closes too,
+     * our FIN is then acked in one round trip. Going on from FIN_WAIT_2 to
+     * TIME_WAIT; a FIN arriving later than that (our ACK was lost) is acked
+     * again. A FIN in ESTABLISHED has been stored in
+     * {@link #disconnectRequest} by {@link #deliver(KtnDatagram, boolean)}.
+     * 
+     * @param packet
+     *            a received FIN.
+     */
+    private void finReceived(KtnDatagram packet) {
+        if (!isRemote(packet.getSrc_addr(), packet.getSrc_port())) return;
+        if (state == State.CLOSED || state == State.LISTEN || state == State.SYN_SENT
+                || state == State.SYN_RCVD) return;
+        try {
+            sendAck(packet, false);
+        }
+        catch (IOException e) {
+            // The other side retransmits the FIN.
+            Log.writeToLog(packet, "Unable to ack FIN: " + e.getMessage(), "ConnectionImpl");
+        }
+        synchronized (this) {
+            if (disconnectRequest == null) disconnectRequest = packet;
+            if (state == State.FIN_WAIT_2) {
+                closeTimeout.cancel();
+                timeWait();
+            }
+        }
+    }
+
+    /**
+     * Both FINs have been acked: complete the close, and linger in TIME_WAIT
+     * so that the FIN of the other side can be acked again if our ACK was
+     * lost, before the port is given back. The caller must hold the monitor.
+     */
+    private void timeWait() {
+        state = State.TIME_WAIT;
+        pendingCloses.remove(this);
+        closing.complete(null);
+        closeTimeout = TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                release(null);
+            }
+        }, getReceiveTimeout(), this);
+    }
+
+    /**
+     * End the close: stop sending and receiving, give the port back, and fail
+     * whoever still waits on the connection.
+     * 
+     * @param e
+     *            the exception to fail the close with, or null if it
+     *            succeeded.
+     */
+    private void release(IOException e) {
+        closeSendWindow();
+        stopReceiving();
+        state = State.CLOSED;
+        releasePort();
+        failWaiting(new ConnectException("Connection closed."));
+        pendingCloses.remove(this);
+        if (e == null) {
+            closing.complete(null);
+        }
+        else {
+            Log.writeToLog(e.getMessage(), "ConnectionImpl");
+            closing.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Wait for the closes still going on, see {@link #pendingCloses}, for up
+     * to {@link #EXIT_LINGER} in all. Run when the JVM exits.
+     */
+    private static void awaitPendingCloses() {
+        List<ConnectionImpl> waiting;
+        synchronized (pendingCloses) {
+            waiting = new ArrayList<ConnectionImpl>(pendingCloses);
+        }
+        long deadline = System.currentTimeMillis() + EXIT_LINGER;
+        for (ConnectionImpl conn : waiting) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return;
+            try {
+                conn.closing.get(left, TimeUnit.MILLISECONDS);
+            }
+            catch (Exception e) {
+                // Failed or timed out; the other side will give up in time.
+            }
+        }
     }
 
     /**
      * Test a packet for transmission errors. This function should only called
-     * with data or ACK packets in the ESTABLISHED state.
+     * with data or ACK packets in the ESTABLISHED state. The checksum has
+     * already been checked by {@link #deliver(KtnDatagram, boolean)}.
      * 
      * @param packet
      *            Packet to test.
      * @return true if packet is free of errors, false otherwise.
      */
     protected boolean isValid(KtnDatagram packet) {
-        throw new UnsupportedOperationException();
+        if (packet == null) return false;
+        if (packet.getFlag() == Flag.NONE && Segment.decode(packet) == null) {
+            Log.writeToLog(packet, "Not a data segment, packet dropped", "ConnectionImpl");
+            return false;
+        }
+        if (packet.getSrc_port() != remotePort || !remoteAddress.equals(packet.getSrc_addr())) {
+            Log.writeToLog(packet, "Packet from unknown sender, dropped", "ConnectionImpl");
+            return false;
+        }
+        return true;
     }
 }
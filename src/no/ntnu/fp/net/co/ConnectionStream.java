@@ -0,0 +1,186 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A logical stream of messages carried by a {@link ConnectionImpl}, next to
+ * the main stream used by the methods of {@link Connection}. Opening a stream
+ * costs no handshake, port or thread of its own: it is only a number carried
+ * by the data packets of the connection (see {@link Segment}). <br>
+ * <br>
+ * Messages on a stream arrive in the order they were sent on it. Streams do not
+ * wait for each other: the streams with messages to send take turns putting a
+ * fragment in the send window, and each stream has its own receive queue, so a
+ * long transfer on one stream does not hold up short messages on another, and
+ * an unread message on one stream does not block a receive on another. A lost
+ * packet only holds up the packets sent after it on its own stream until it has
+ * been retransmitted. The main stream is the exception: it is kept in sequence
+ * order, so a lost packet on any stream holds it up. <br>
+ * <br>
+ * One side opens a stream with {@link ConnectionImpl#openStream()}, and the
+ * other side gets it from {@link ConnectionImpl#acceptStream()} when the first
+ * message arrives. Either side may then send and receive on it until it is
+ * closed. The methods behave like those of {@link Connection} and
+ * {@link AsyncConnection} with the same names.
+ *
+ * @see ConnectionImpl#openStream()
+ * @see ConnectionImpl#acceptStream()
+ */
+public class ConnectionStream {
+
+    /** The connection carrying the stream. */
+    private final ConnectionImpl connection;
+
+    /** The number of the stream, see {@link #getId()}. */
+    private final int id;
+
+    /** True once {@link #close()} has been called. */
+    private volatile boolean closed;
+
+    /**
+     * Create the handle of a stream that has been opened on a connection.
+     *
+     * @param connection
+     *            the connection.
+     * @param id
+     *            the number of the stream.
+     */
+    ConnectionStream(ConnectionImpl connection, int id) {
+        this.connection = connection;
+        this.id = id;
+    }
+
+    /**
+     * @return the number of the stream, unique on its connection. Odd for
+     *         streams opened by the side that connected, even for streams
+     *         opened by the side that accepted.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the connection carrying the stream.
+     */
+    public ConnectionImpl getConnection() {
+        return connection;
+    }
+
+    /**
+     * Send a message on the stream.
+     *
+     * @param msg
+     *            the message to be sent
+     * @throws ConnectException
+     *             if the stream or the connection is closed
+     * @throws IOException
+     *             if an I/O error occurs when sending
+     * @see Connection#send(String)
+     */
+    public void send(String msg) throws ConnectException, IOException {
+        if (closed) throw new ConnectException("Stream is closed.");
+        connection.send(id, msg);
+    }
+
+    /**
+     * Send a binary message on the stream.
+     *
+     * @param msg
+     *            the message to be sent: the bytes from its position to its
+     *            limit. The position is moved to the limit.
+     * @throws ConnectException
+     *             if the stream or the connection is closed
+     * @throws IOException
+     *             if an I/O error occurs when sending
+     * @see Connection#send(ByteBuffer)
+     */
+    public void send(ByteBuffer msg) throws ConnectException, IOException {
+        if (closed) throw new ConnectException("Stream is closed.");
+        connection.send(id, msg);
+    }
+
+    /**
+     * Send a message on the stream without blocking.
+     *
+     * @param msg
+     *            the message to be sent
+     * @return a future completed when the message has been sent as far as
+     *         {@link #send(String)} would have sent it before returning.
+     * @see AsyncConnection#sendAsync(String)
+     */
+    public CompletableFuture<Void> sendAsync(String msg) {
+        if (closed) {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.completeExceptionally(new ConnectException("Stream is closed."));
+            return future;
+        }
+        return connection.sendAsync(id, msg);
+    }
+
+    /**
+     * Receive the next message on the stream. Blocks until it has arrived.
+     *
+     * @return the received message
+     * @throws ConnectException
+     *             if the stream or the connection is closed
+     * @throws java.io.EOFException
+     *             if the other side closed the stream or the connection
+     * @throws IOException
+     *             if an I/O error occurs when receiving
+     * @see Connection#receive()
+     */
+    public String receive() throws ConnectException, IOException {
+        return connection.receive(id);
+    }
+
+    /**
+     * Receive the next message on the stream into a buffer. Blocks until it has
+     * arrived.
+     *
+     * @param dst
+     *            the buffer to put the message in, from its position.
+     * @return the number of bytes in the message
+     * @throws java.nio.BufferOverflowException
+     *             if the message does not fit in the buffer. The message is
+     *             kept, and returned by the next receive.
+     * @throws ConnectException
+     *             if the stream or the connection is closed
+     * @throws IOException
+     *             if an I/O error occurs when receiving
+     * @see Connection#receive(ByteBuffer)
+     */
+    public int receive(ByteBuffer dst) throws ConnectException, IOException {
+        return connection.receive(id, dst);
+    }
+
+    /**
+     * Receive the next message on the stream without blocking.
+     *
+     * @return a future completed with the received message, or with an
+     *         {@link java.io.EOFException} if the other side closed the stream
+     *         or the connection.
+     * @see AsyncConnection#receiveAsync()
+     */
+    public CompletableFuture<String> receiveAsync() {
+        return connection.receiveAsync(id);
+    }
+
+    /**
+     * Close the stream. The messages sent on it so far are delivered, and the
+     * other side then gets an {@link java.io.EOFException} from its receives on
+     * the stream. Messages that arrive on the stream after this are dropped.
+     * Closing a stream does not close the connection, and closing the
+     * connection closes every stream on it.
+     *
+     * @throws IOException
+     *             if an I/O error occurs when telling the other side
+     */
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        connection.closeStream(id);
+    }
+}
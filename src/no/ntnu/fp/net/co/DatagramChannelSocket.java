@@ -0,0 +1,139 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A {@link PacketSocket} over UDP, see {@link Transport#DATAGRAM}: every
+ * packet is one datagram, written by {@link DatagramCodec}. Datagrams may be
+ * lost, duplicated or reordered on the way, which is what the
+ * connection-oriented layer is made to cope with, and they cost no more than
+ * the network itself. <br>
+ * <br>
+ * All sockets send on one shared, unbound channel, each thread encoding into
+ * a direct buffer of its own. A socket receives on a channel bound to the
+ * port, into a direct buffer of its own.
+ */
+class DatagramChannelSocket implements PacketSocket {
+
+    /** The largest datagram UDP can carry. */
+    final static int MAX_DATAGRAM = 65507;
+
+    /** The channel packets are sent from. */
+    private static volatile DatagramChannel sender;
+
+    /** The buffer of each sending thread. */
+    private final static ThreadLocal<ByteBuffer> sendBuffer = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        }
+    };
+
+    /** The channel bound to the port of {@link #receive(int)}, once called. */
+    private volatile DatagramChannel receiver;
+
+    /** The buffer datagrams are received into. */
+    private ByteBuffer receiveBuffer;
+
+    /** Set by {@link #cancelReceive()}. */
+    private volatile boolean cancelled;
+
+    /**
+     * @param packet
+     *            the packet to send. Its checksum field is not used:
+     *            {@link DatagramCodec} writes a checksum of its own.
+     * @throws IOException
+     *             if the packet does not fit in a datagram, or could not be
+     *             sent.
+     */
+    public void send(KtnDatagram packet) throws IOException {
+        ByteBuffer buffer = sendBuffer.get();
+        buffer.clear();
+        try {
+            DatagramCodec.encode(packet, buffer);
+        }
+        catch (BufferOverflowException e) {
+            throw new IOException("Packet too large for a datagram.");
+        }
+        buffer.flip();
+        // An IP literal is parsed, and a name is looked up through the cache
+        // of InetAddress.
+        sender().send(buffer, new InetSocketAddress(InetAddress.getByName(packet.getDest_addr()),
+                packet.getDest_port()));
+    }
+
+    public KtnDatagram receive(int port) throws IOException {
+        while (!cancelled) {
+            DatagramChannel channel = receiver;
+            if (channel == null) channel = bind(port);
+            ByteBuffer buffer = receiveBuffer;
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+            }
+            catch (ClosedByInterruptException e) {
+                // Interrupted, which closes the channel; listen again.
+                Thread.interrupted();
+                receiver = null;
+                continue;
+            }
+            catch (AsynchronousCloseException e) {
+                return null;
+            }
+            buffer.flip();
+            try {
+                return DatagramCodec.decode(buffer);
+            }
+            catch (IOException e) {
+                Log.writeToLog("Dropped a datagram: " + e.getMessage(), "DatagramChannelSocket");
+            }
+        }
+        return null;
+    }
+
+    public void cancelReceive() throws IOException {
+        cancelled = true;
+        DatagramChannel channel = receiver;
+        if (channel != null) channel.close();
+    }
+
+    /**
+     * Open the channel to receive on, and its buffer. SO_REUSEADDR is left
+     * off: with UDP it would let another process bind the same port without
+     * an error and take its datagrams, while a port in use must fail with a
+     * BindException, see {@link PortAllocator}.
+     */
+    private synchronized DatagramChannel bind(int port) throws IOException {
+        if (receiveBuffer == null) receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress(port));
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        receiver = channel;
+        if (cancelled) channel.close();
+        return channel;
+    }
+
+    /** @return the channel to send from, opened the first time. */
+    private static DatagramChannel sender() throws IOException {
+        DatagramChannel channel = sender;
+        if (channel != null && channel.isOpen()) return channel;
+        synchronized (DatagramChannelSocket.class) {
+            if (sender == null || !sender.isOpen()) sender = DatagramChannel.open();
+            return sender;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package no.ntnu.fp.net.co;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32C;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+import no.ntnu.fp.net.cl.Util;
+
+/**
+ * A compact binary form of {@link KtnDatagram}, for the transports of the
+ * connection-oriented layer. <br>
+ * <br>
+ * The connectionless layer sends a packet as a serialized Java object (see
+ * {@link Util#toByteArray(java.io.Serializable)}): class descriptors, both
+ * addresses as Strings and the flag as an enum take a few hundred bytes,
+ * whatever the size of the payload. Here a packet is written in a fixed
+ * layout instead:
+ * <ul>
+ * <li>{@link #MAGIC}, one byte.</li>
+ * <li>The ordinal of the flag in the low bits of one byte, with bits for the
+ * debug mark and whether there is a payload.</li>
+ * <li>The source and the destination address: a byte telling the kind, and
+ * the 4 or 16 bytes of an IP address. An address that is not an IP literal,
+ * such as "localhost", is written as its length and characters instead, so
+ * that it reads back as the same String, which is what
+ * {@link AbstractConnection#isRemote(String, int)} compares.</li>
+ * <li>The source and the destination port, the sequence number and the ack
+ * number, each as a varint: 7 bits a byte, lowest first, the high bit set on
+ * every byte but the last. All of them are 32 bits, so a varint has at most
+ * 5 bytes, see {@link #getVarInt(ByteBuffer)}.</li>
+ * <li>If there is a payload, its length as a varint and its bytes, as they
+ * are.</li>
+ * <li>The CRC32C of all the bytes before it, in 4 bytes.</li>
+ * </ul>
+ * A chat line thus costs about 20 bytes of header. The checksum field of the
+ * packet, the CRC32 of the payload alone (see
+ * {@link KtnDatagram#calculateChecksum()}), is not written: the CRC32C covers
+ * the header as well, including the sequence and ack numbers and what
+ * {@link Segment} packs into them, and is computed straight over the bytes
+ * written, with an engine per thread. {@link #decode(ByteBuffer)} refuses a
+ * packet whose bytes do not match it, so a packet decoded here has been
+ * checked, see {@link Transport#checksPackets()}. A packet is encoded into,
+ * and decoded from, a ByteBuffer given by the caller, so that a transport can
+ * use one buffer for all its packets. <br>
+ * <br>
+ * With {@link #setLegacy(boolean)}, packets are written serialized, as the
+ * connectionless layer does, and {@link #decode(ByteBuffer)} reads both forms,
+ * telling them apart by the first byte. Without it, serialized packets are
+ * refused: the bytes come straight off the network, and deserializing them
+ * could make objects of any class on the class path. Even in legacy mode
+ * they are read through {@link #PACKET_ONLY}, which only lets a
+ * {@link KtnDatagram} and the types of its fields through.
+ */
+final class DatagramCodec {
+
+    /** First byte of an encoded packet. A serialized one starts with 0xAC. */
+    final static byte MAGIC = 'K';
+
+    /** First byte of a serialized Java object, see {@link #setLegacy(boolean)}. */
+    private final static byte SERIALIZED = (byte)0xAC;
+
+    /** Bits of the flag byte, above the ordinal of the flag. */
+    private final static int DEBUG = 0x10, HAS_PAYLOAD = 0x20, ORDINAL = 0x0F;
+
+    /** Kinds of address. */
+    private final static byte NO_ADDRESS = 0, NAME = 1, IPV4 = 4, IPV6 = 16;
+
+    /** The most bytes of a varint, see {@link #getVarInt(ByteBuffer)}. */
+    private final static int VARINT = 5;
+
+    /** Bytes of the CRC32C at the end of an encoded packet. */
+    private final static int CHECKSUM = 4;
+
+    /** The most bytes of an encoded packet besides its payload and addresses. */
+    private final static int HEADER = 2 + 4 * VARINT + VARINT + CHECKSUM;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final static Flag[] FLAGS = Flag.values();
+
+    /** The CRC32C of each thread, see {@link #checksum(ByteBuffer, int, int)}. */
+    private final static ThreadLocal<CRC32C> crc = new ThreadLocal<CRC32C>() {
+        protected CRC32C initialValue() {
+            return new CRC32C();
+        }
+    };
+
+    /**
+     * The classes a serialized packet is made of: the packet, its flag, and
+     * the types of its other fields that are not primitive.
+     */
+    private final static Class<?>[] PACKET_CLASSES = { KtnDatagram.class, Flag.class, Enum.class,
+            String.class, byte[].class };
+
+    /** Most objects a serialized packet refers to: addresses, flag, payload. */
+    private final static int PACKET_REFERENCES = 16;
+
+    /**
+     * Deepest nesting of classes in a serialized packet: the packet, its
+     * fields, and the superclass of its flag.
+     */
+    private final static int PACKET_DEPTH = 3;
+
+    /**
+     * Longest payload of a serialized packet. No transport carries a larger
+     * one, and the array is allocated before its bytes are read.
+     */
+    private final static int MAX_PAYLOAD = 1 << 20;
+
+    /**
+     * Refuses any stream that is not a serialized {@link KtnDatagram}, see
+     * {@link #decodeSerialized(ByteBuffer)}.
+     */
+    private final static ObjectInputFilter PACKET_ONLY = new ObjectInputFilter() {
+        public Status checkInput(FilterInfo info) {
+            if (info.depth() > PACKET_DEPTH || info.references() > PACKET_REFERENCES
+                    || info.arrayLength() > MAX_PAYLOAD) return Status.REJECTED;
+            Class<?> type = info.serialClass();
+            if (type == null) return Status.ALLOWED;
+            for (Class<?> allowed : PACKET_CLASSES) {
+                if (type == allowed) return Status.ALLOWED;
+            }
+            return Status.REJECTED;
+        }
+    };
+
+    /** Write packets serialized, see {@link #setLegacy(boolean)}. */
+    private static volatile boolean legacy;
+
+    private DatagramCodec() {
+    }
+
+    /**
+     * @param legacy
+     *            true to write packets serialized, as the connectionless layer
+     *            does, for peers that do not read the binary form yet, and to
+     *            read serialized packets as well as binary ones. With false,
+     *            only the binary form is read.
+     */
+    static void setLegacy(boolean legacy) {
+        DatagramCodec.legacy = legacy;
+    }
+
+    /**
+     * @return whether packets are written serialized, see
+     *         {@link #setLegacy(boolean)}.
+     */
+    static boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * @param packet
+     *            a packet.
+     * @return the most bytes {@link #encode(KtnDatagram, ByteBuffer)} writes
+     *         for the packet. In the legacy form, the packet is serialized to
+     *         find out.
+     */
+    static int maxSize(KtnDatagram packet) {
+        if (legacy) return Util.toByteArray(packet).length;
+        byte[] payload = packet.getPayloadAsBytes();
+        return HEADER + maxAddressSize(packet.getSrc_addr())
+                + maxAddressSize(packet.getDest_addr())
+                + (payload == null ? 0 : payload.length);
+    }
+
+    /**
+     * @return the most bytes {@link #address(String)} gives for an address,
+     *         without parsing it: a name takes at most 3 bytes a character.
+     */
+    private static int maxAddressSize(String address) {
+        if (address == null) return 1;
+        return 1 + Math.max(IPV6, VARINT + 3 * address.length());
+    }
+
+    /**
+     * Write a packet at the position of a buffer, and move the position past
+     * it.
+     *
+     * @param packet
+     *            the packet.
+     * @param buffer
+     *            the buffer to write to.
+     * @throws BufferOverflowException
+     *             if the packet does not fit in the remaining bytes of the
+     *             buffer, see {@link #maxSize(KtnDatagram)}.
+     */
+    static void encode(KtnDatagram packet, ByteBuffer buffer) {
+        if (legacy) {
+            // Checked against the payload by the other side, see decodeSerialized.
+            packet.setChecksum(packet.calculateChecksum());
+            buffer.put(Util.toByteArray(packet));
+            return;
+        }
+        int start = buffer.position();
+        byte[] payload = packet.getPayloadAsBytes();
+        int flags = packet.getFlag() == null ? Flag.NONE.ordinal() : packet.getFlag().ordinal();
+        if (packet.isDebug()) flags |= DEBUG;
+        if (payload != null) flags |= HAS_PAYLOAD;
+
+        buffer.put(MAGIC).put((byte)flags);
+        buffer.put(address(packet.getSrc_addr()));
+        buffer.put(address(packet.getDest_addr()));
+        putVarLong(buffer, packet.getSrc_port() & 0xFFFFFFFFL);
+        putVarLong(buffer, packet.getDest_port() & 0xFFFFFFFFL);
+        putVarLong(buffer, packet.getSeq_nr() & 0xFFFFFFFFL);
+        putVarLong(buffer, packet.getAck() & 0xFFFFFFFFL);
+        if (payload != null) {
+            putVarLong(buffer, payload.length);
+            buffer.put(payload);
+        }
+        buffer.putInt((int)checksum(buffer, start, buffer.position()));
+    }
+
+    /**
+     * Read a packet from the position of a buffer up to its limit, written by
+     * {@link #encode(KtnDatagram, ByteBuffer)}: in the binary form, or in the
+     * serialized form if {@link #isLegacy()}.
+     *
+     * @param buffer
+     *            the buffer holding the packet.
+     * @return the packet. Its checksum is the CRC32C its bytes were checked
+     *         against, or for a serialized packet the CRC32 of its payload.
+     * @throws IOException
+     *             if the bytes are not a packet, are damaged, or are a
+     *             serialized packet while not {@link #isLegacy()}.
+     */
+    static KtnDatagram decode(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) throw new IOException("Empty packet.");
+        if (buffer.get(buffer.position()) == SERIALIZED) {
+            if (!legacy) throw new IOException("Serialized packet refused, legacy codec is off.");
+            return decodeSerialized(buffer);
+        }
+        if (buffer.remaining() < 2 + CHECKSUM) throw new IOException("Truncated packet.");
+        int end = buffer.limit() - CHECKSUM;
+        long checksum = checksum(buffer, buffer.position(), end);
+        if ((int)checksum != buffer.getInt(end)) throw new IOException("Checksum error.");
+        ByteBuffer body = buffer.duplicate();
+        body.limit(end);
+        buffer.position(buffer.limit());
+        return decodeBody(body, checksum);
+    }
+
+    /**
+     * Read the fields of a packet whose checksum has been checked, up to the
+     * checksum, see {@link #decode(ByteBuffer)}.
+     */
+    private static KtnDatagram decodeBody(ByteBuffer buffer, long checksum) throws IOException {
+        try {
+            if (buffer.get() != MAGIC) throw new IOException("Not a packet.");
+            int flags = buffer.get() & 0xFF;
+            if ((flags & ORDINAL) >= FLAGS.length) throw new IOException("Unknown flag.");
+
+            KtnDatagram packet = new KtnDatagram();
+            packet.setFlag(FLAGS[flags & ORDINAL]);
+            packet.setDebug((flags & DEBUG) != 0);
+            packet.setSrc_addr(getAddress(buffer));
+            packet.setDest_addr(getAddress(buffer));
+            packet.setSrc_port((int)getVarInt(buffer));
+            packet.setDest_port((int)getVarInt(buffer));
+            packet.setSeq_nr((int)getVarInt(buffer));
+            packet.setAck((int)getVarInt(buffer));
+            if ((flags & HAS_PAYLOAD) != 0) {
+                long length = getVarInt(buffer);
+                if (length < 0 || length > buffer.remaining()) throw new IOException("Truncated payload.");
+                byte[] payload = new byte[(int)length];
+                buffer.get(payload);
+                packet.setPayloadAsBytes(payload);
+            }
+            packet.setChecksum(checksum);
+            return packet;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated packet.");
+        }
+    }
+
+    /**
+     * Read a packet written by {@link Util#toByteArray(java.io.Serializable)},
+     * through {@link #PACKET_ONLY}, and check the CRC32 of its payload.
+     * {@link Util#toObject(byte[])} is not used, as it takes any object.
+     */
+    private static KtnDatagram decodeSerialized(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            in.setObjectInputFilter(PACKET_ONLY);
+            Object packet = in.readObject();
+            if (!(packet instanceof KtnDatagram)) throw new IOException("Not a packet.");
+            KtnDatagram datagram = (KtnDatagram)packet;
+            if (datagram.calculateChecksum() != datagram.getChecksum()) {
+                throw new IOException("Checksum error.");
+            }
+            return datagram;
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("Not a packet: " + e.getMessage());
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param address
+     *            an address of a packet, or null.
+     * @return the address as written by {@link #encode(KtnDatagram, ByteBuffer)}.
+     */
+    private static byte[] address(String address) {
+        if (address == null) return new byte[] { NO_ADDRESS };
+        byte[] bytes;
+        byte[] ip = ipLiteral(address);
+        if (ip != null) {
+            bytes = new byte[1 + ip.length];
+            bytes[0] = (byte)ip.length;
+            System.arraycopy(ip, 0, bytes, 1, ip.length);
+        }
+        else {
+            byte[] name = address.getBytes(UTF8);
+            ByteBuffer buffer = ByteBuffer.allocate(1 + VARINT + name.length);
+            buffer.put(NAME);
+            putVarLong(buffer, name.length);
+            buffer.put(name);
+            bytes = new byte[buffer.position()];
+            buffer.flip();
+            buffer.get(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the bytes of an IP address written in the form
+     *         {@link InetAddress#getHostAddress()} gives it, so that it reads
+     *         back the same, or null for any other address. Never looks the
+     *         address up.
+     */
+    private static byte[] ipLiteral(String address) {
+        boolean ipv6 = address.indexOf(':') >= 0;
+        if (!ipv6) {
+            for (int i = 0; i < address.length(); i++) {
+                char c = address.charAt(i);
+                if (c != '.' && (c < '0' || c > '9')) return null;
+            }
+        }
+        try {
+            InetAddress ip = InetAddress.getByName(address);
+            return ip.getHostAddress().equals(address) ? ip.getAddress() : null;
+        }
+        catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /** Read an address written by {@link #address(String)}. */
+    private static String getAddress(ByteBuffer buffer) throws IOException {
+        byte kind = buffer.get();
+        if (kind == NO_ADDRESS) return null;
+        if (kind == NAME) {
+            long length = getVarInt(buffer);
+            if (length < 0 || length > buffer.remaining()) throw new IOException("Truncated address.");
+            byte[] name = new byte[(int)length];
+            buffer.get(name);
+            return new String(name, UTF8);
+        }
+        if (kind != IPV4 && kind != IPV6) throw new IOException("Unknown address kind.");
+        byte[] ip = new byte[kind];
+        buffer.get(ip);
+        return InetAddress.getByAddress(ip).getHostAddress();
+    }
+
+    /**
+     * @return the CRC32C of the bytes of a buffer from start up to end,
+     *         leaving its position as it is.
+     */
+    private static long checksum(ByteBuffer buffer, int start, int end) {
+        ByteBuffer covered = buffer.duplicate();
+        covered.limit(end).position(start);
+        CRC32C engine = crc.get();
+        engine.reset();
+        engine.update(covered);
+        return engine.getValue();
+    }
+
+    /** Write a value as a varint, taken as unsigned. */
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    /**
+     * Read a varint written by {@link #putVarLong(ByteBuffer, long)} for a
+     * 32 bit value. Longer varints are refused, so that a length read with
+     * this is never negative.
+     *
+     * @return the value, unsigned.
+     */
+    private static long getVarInt(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 7 * VARINT; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value > 0xFFFFFFFFL) break;
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+}
@@ -0,0 +1,216 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Receive daemon for one local port. The daemon listens on the port for as
+ * long as a connection is registered on it, and hands every packet to the
+ * connection it belongs to, see
+ * {@link AbstractConnection#deliver(KtnDatagram, boolean)}. <br>
+ * <br>
+ * This replaces starting a {@link ClSocket} receive (and a thread) for every
+ * packet a connection waits for, and closes the gaps between those receives
+ * where the port was not listening and packets were refused. The daemon
+ * itself never sends: what a packet sets off is run on the shared
+ * {@link TimerWheel}, so that a peer that does not answer does not hold up
+ * the other connections on the port.
+ */
+class PacketDemultiplexer extends Thread {
+
+    /**
+     * Interval in milliseconds between checks for a receive that is stuck,
+     * see {@link #unstick()}.
+     */
+    private final static int STALL_CHECK = 250;
+
+    /** The running daemons, by local port. */
+    private static Map<Integer, PacketDemultiplexer> daemons = new HashMap<Integer, PacketDemultiplexer>();
+
+    /** Port to listen on. */
+    private final int port;
+
+    /** Connections using the port. */
+    private final List<AbstractConnection> connections;
+
+    /** Socket the daemon is receiving on, over the {@link Transport} in use. */
+    private final PacketSocket socket;
+
+    /** Whether the transport of {@link #socket} checks the packets itself. */
+    private final boolean checked;
+
+    /** Number of checks in a row that found the daemon waiting. */
+    private int waitingChecks;
+
+    /** Cleared when the last connection unregisters. */
+    private volatile boolean running;
+
+    /**
+     * Register a connection on its local port, starting the daemon for the
+     * port if it is not running.
+     *
+     * @param port
+     *            the connection's local port.
+     * @param connection
+     *            the connection to deliver packets to.
+     */
+    static void register(int port, AbstractConnection connection) {
+        synchronized (daemons) {
+            PacketDemultiplexer daemon = daemons.get(port);
+            if (daemon == null) {
+                daemon = new PacketDemultiplexer(port);
+                daemons.put(port, daemon);
+                daemon.start();
+                daemon.unstick();
+            }
+            synchronized (daemon.connections) {
+                if (!daemon.connections.contains(connection)) daemon.connections.add(connection);
+            }
+        }
+    }
+
+    /**
+     * Unregister a connection. The daemon for the port stops when no
+     * connections are left.
+     *
+     * @param port
+     *            the connection's local port.
+     * @param connection
+     *            the connection to unregister.
+     */
+    static void unregister(int port, AbstractConnection connection) {
+        synchronized (daemons) {
+            PacketDemultiplexer daemon = daemons.get(port);
+            if (daemon == null) return;
+            synchronized (daemon.connections) {
+                daemon.connections.remove(connection);
+                if (!daemon.connections.isEmpty()) return;
+            }
+            daemons.remove(port);
+            daemon.shutdown();
+        }
+    }
+
+    private PacketDemultiplexer(int port) {
+        super("PacketDemultiplexer-" + port);
+        this.port = port;
+        connections = new ArrayList<AbstractConnection>();
+        Transport transport = Transport.getCurrent();
+        socket = transport.open();
+        checked = transport.checksPackets();
+        running = true;
+        setDaemon(true);
+    }
+
+    /** Receive packets until shut down. */
+    public void run() {
+        while (running) {
+            KtnDatagram packet;
+            try {
+                packet = socket.receive(port);
+            }
+            catch (IOException e) {
+                receiveFailed(e);
+                continue;
+            }
+            catch (RuntimeException e) {
+                // A bug below; keep the port listening for the others.
+                receiveFailed(e);
+                continue;
+            }
+            if (packet == null) continue;
+
+            PacketDemultiplexer daemon = this;
+            if (!running) {
+                // Shut down while receiving; a new daemon may have taken over.
+                synchronized (daemons) {
+                    daemon = daemons.get(port);
+                }
+                if (daemon == null) return;
+            }
+            AbstractConnection connection = daemon.route(packet);
+            if (connection != null) {
+                connection.deliver(packet, checked);
+            }
+            else {
+                Log.writeToLog(packet, "No connection for packet, dropped", "PacketDemultiplexer");
+            }
+        }
+    }
+
+    /**
+     * Log a failed receive, and wait a little before the next, so that a
+     * receive that keeps failing does not keep the daemon busy.
+     */
+    private void receiveFailed(Exception e) {
+        if (!running) return;
+        Log.writeToLog("Exception while receiving: " + e, "PacketDemultiplexer");
+        try {
+            Thread.sleep(100);
+        }
+        catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * Find the connection a packet belongs to: the connection to the packet's
+     * source address and port, or else a connection that does not know its
+     * remote side yet (listening or connecting).
+     */
+    private AbstractConnection route(KtnDatagram packet) {
+        synchronized (connections) {
+            if (connections.size() == 1) return connections.get(0);
+
+            AbstractConnection unbound = null;
+            for (AbstractConnection connection : connections) {
+                if (connection.isRemote(packet.getSrc_addr(), packet.getSrc_port())) return connection;
+                if (!connection.isBound()) unbound = connection;
+            }
+            return unbound;
+        }
+    }
+
+    /**
+     * Wake the daemon if it is waiting inside {@link ClSocket#receive(int)}.
+     * <br>
+     * <br>
+     * ClSocket waits for its accept thread without checking whether the
+     * accept has already finished, so a packet that arrives just before the
+     * wait can leave the daemon waiting until the next packet, which may never
+     * come. An interrupt makes it check again: if the accept is still going
+     * on, it just goes back to waiting. The daemon is interrupted when it has
+     * been found waiting twice in a row, checking every {@link #STALL_CHECK}
+     * ms on the shared {@link TimerWheel}.
+     */
+    private void unstick() {
+        if (!running) return;
+        if (getState() != Thread.State.WAITING) waitingChecks = 0;
+        else if (++waitingChecks >= 2) {
+            waitingChecks = 0;
+            interrupt();
+        }
+        TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                unstick();
+            }
+        }, STALL_CHECK, this);
+    }
+
+    /** Stop receiving, and close the port. */
+    private void shutdown() {
+        running = false;
+        try {
+            socket.cancelReceive();
+        }
+        catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A bounded queue of received packets, filled by the
+ * {@link PacketDemultiplexer} and emptied by the threads using a connection.
+ * <br>
+ * <br>
+ * Adding and removing packets is lock-free: the queue is a ring of slots, each
+ * with a sequence number telling whether it is ready to be written or read
+ * (a bounded multi-producer, multi-consumer queue). Only threads that find the
+ * queue empty and want to wait take the lock, and adding a packet wakes one of
+ * the threads waiting on this queue, and only if there are any. A connection
+ * keeps one queue per kind of waiter, so that an ACK does not wake a thread
+ * waiting for data, and the other way around.
+ *
+ * @see AbstractConnection#deliver(KtnDatagram, boolean)
+ */
+class PacketQueue {
+
+    /** The slots, a power of two of them. */
+    private final AtomicReferenceArray<KtnDatagram> slots;
+
+    /**
+     * Sequence number per slot. A slot at position p (counting every packet
+     * ever added) can be written when its sequence number is p, and read when
+     * it is p + 1.
+     */
+    private final AtomicLongArray sequences;
+
+    /** Number of slots - 1, for wrapping positions. */
+    private final int mask;
+
+    /** Position of the next packet to remove, and of the next to add. */
+    private final AtomicLong head, tail;
+
+    /** Number of threads in {@link #await(long)}. */
+    private final AtomicInteger waiters;
+
+    /** Held only to wait for, or signal, a new packet. */
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    /**
+     * Create an empty queue.
+     *
+     * @param capacity
+     *            maximum number of packets in the queue, rounded up to a power
+     *            of two.
+     */
+    PacketQueue(int capacity) {
+        int size = 2;
+        while (size < capacity) size <<= 1;
+        slots = new AtomicReferenceArray<KtnDatagram>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        waiters = new AtomicInteger();
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+    }
+
+    /**
+     * Add a packet to the end of the queue, and wake a thread waiting for it.
+     *
+     * @param packet
+     *            the packet to add.
+     * @return false if the queue was full, and the packet was not added.
+     */
+    boolean offer(KtnDatagram packet) {
+        while (true) {
+            long position = tail.get();
+            int index = (int)position & mask;
+            long distance = sequences.get(index) - position;
+            if (distance == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, packet);
+                    sequences.set(index, position + 1);
+                    break;
+                }
+            }
+            else if (distance < 0) {
+                return false; // The slot has not been read since last round.
+            }
+            // Otherwise another thread added a packet first; try again.
+        }
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the first packet in the queue, without waiting.
+     *
+     * @return the packet, or null if the queue is empty.
+     */
+    KtnDatagram poll() {
+        while (true) {
+            long position = head.get();
+            int index = (int)position & mask;
+            long distance = sequences.get(index) - (position + 1);
+            if (distance == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    KtnDatagram packet = slots.getAndSet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return packet;
+                }
+            }
+            else if (distance < 0) {
+                return null;
+            }
+            // Otherwise another thread removed the packet first; try again.
+        }
+    }
+
+    /** @return true if there is no packet ready to be removed. */
+    boolean isEmpty() {
+        long position = head.get();
+        return sequences.get((int)position & mask) != position + 1;
+    }
+
+    /**
+     * Wait until a packet may be available. Returns at once if the queue is
+     * not empty. Callers must check the queue again afterwards, as another
+     * thread may have taken the packet, or the wait may have been ended by
+     * {@link #wakeAll()} or a timeout.
+     *
+     * @param timeout
+     *            maximum time to wait in milliseconds, or 0 to wait until a
+     *            packet is added.
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting.
+     */
+    void await(long timeout) throws InterruptedException {
+        waiters.incrementAndGet();
+        lock.lock();
+        try {
+            if (!isEmpty()) return;
+            if (timeout > 0) notEmpty.await(timeout, TimeUnit.MILLISECONDS);
+            else notEmpty.await();
+        }
+        finally {
+            lock.unlock();
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wake every thread waiting on this queue, e.g. when the connection is
+     * closed by the other side and no more packets are coming.
+     */
+    void wakeAll() {
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * What the connection-oriented layer needs from the layer below it: the
+ * operations of {@link ClSocket}, which it sends and receives its packets
+ * with. Sockets are made by the {@link Transport} in use, see
+ * {@link Transport#open()}.
+ *
+ * @see Transport
+ */
+public interface PacketSocket {
+
+    /**
+     * Send a packet to the address and port it is addressed to. The packet
+     * may be lost on the way.
+     *
+     * @param packet
+     *            the packet to send.
+     * @throws IOException
+     *             if the packet could not be sent, e.g. because nobody is
+     *             receiving on the port.
+     * @throws ClException
+     *             if the connectionless layer found no route to the address.
+     * @see ClSocket#send(KtnDatagram)
+     */
+    public void send(KtnDatagram packet) throws IOException, ClException;
+
+    /**
+     * Wait for a packet to arrive on a port, listening on it from the first
+     * call on.
+     *
+     * @param port
+     *            the local port to receive on.
+     * @return the packet, or null if there was none after all, e.g. after
+     *         {@link #cancelReceive()}.
+     * @throws IOException
+     *             if unable to receive on the port.
+     * @see ClSocket#receive(int)
+     */
+    public KtnDatagram receive(int port) throws IOException;
+
+    /**
+     * Stop listening on the port of {@link #receive(int)}, making a receive
+     * going on return.
+     *
+     * @throws IOException
+     *             if unable to close the port.
+     * @see ClSocket#cancelReceive()
+     */
+    public void cancelReceive() throws IOException;
+
+}
@@ -0,0 +1,36 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A {@link PacketSocket} over persistent TCP channels, see
+ * {@link Transport#POOLED}. Packets are sent on the channels of the shared
+ * {@link ChannelPool}, and received by a {@link ChannelListener} of this
+ * socket's own.
+ */
+class PooledSocket implements PacketSocket {
+
+    /** Listens on the port of {@link #receive(int)}, once it is called. */
+    private volatile ChannelListener listener;
+
+    public void send(KtnDatagram packet) throws IOException {
+        ChannelPool.getShared().send(packet);
+    }
+
+    public KtnDatagram receive(int port) throws IOException {
+        ChannelListener listener = this.listener;
+        if (listener == null || listener.getPort() != port) {
+            if (listener != null) listener.close();
+            listener = new ChannelListener(port);
+            this.listener = listener;
+        }
+        return listener.receive();
+    }
+
+    public void cancelReceive() throws IOException {
+        ChannelListener listener = this.listener;
+        if (listener != null) listener.close();
+    }
+}
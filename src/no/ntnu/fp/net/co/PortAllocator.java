@@ -0,0 +1,148 @@
+package no.ntnu.fp.net.co;
+
+import java.net.BindException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The ports handed out to connections made by accept(), see
+ * {@link ConnectionImpl}. Every port in the range has one bit in a bitmap,
+ * set while the port is in use, and the bitmap is changed with
+ * compare-and-set on one 64-bit word at a time, so that threads allocating
+ * and releasing ports do not wait for each other. <br>
+ * <br>
+ * A port is allocated by picking a word at random and taking its lowest
+ * clear bit, trying the next word if it is full, so this takes constant time
+ * until the range is nearly used up. A count of the free ports makes
+ * {@link #allocate()} fail at once when there are none. <br>
+ * <br>
+ * A port given back by a closed connection is kept in quarantine for a while
+ * before it can be handed out again (see {@link #quarantine(int)}), like TCP's
+ * TIME_WAIT: packets of the old connection still on their way must not be
+ * taken for packets of a new connection on the same port.
+ */
+class PortAllocator {
+
+    /** Number of ports per word of {@link #used}. */
+    private final static int WORD = 64;
+
+    /** The lowest port handed out. */
+    private final int first;
+
+    /** The number of ports handed out from {@link #first} on. */
+    private final int count;
+
+    /** Milliseconds a port is kept in quarantine, see {@link #quarantine(int)}. */
+    private final long quarantine;
+
+    /** One bit per port, set while the port is used or in quarantine. */
+    private final AtomicLongArray used;
+
+    /** Number of clear bits in {@link #used}. */
+    private final AtomicInteger free;
+
+    /**
+     * Create an allocator with every port free.
+     *
+     * @param first
+     *            the lowest port handed out.
+     * @param count
+     *            the number of ports handed out.
+     * @param quarantine
+     *            milliseconds a port is kept after it is given back.
+     */
+    PortAllocator(int first, int count, long quarantine) {
+        if (count < 1) throw new IllegalArgumentException("Count must be at least 1.");
+        this.first = first;
+        this.count = count;
+        this.quarantine = quarantine;
+        this.used = new AtomicLongArray((count + WORD - 1) / WORD);
+        this.free = new AtomicInteger(count);
+        // Bits past the end of the range are set, so that they are never handed out.
+        if (count % WORD != 0) used.set(used.length() - 1, -1L << (count % WORD));
+    }
+
+    /**
+     * Take a free port.
+     *
+     * @return the port.
+     * @throws BindException
+     *             if every port is in use or in quarantine.
+     */
+    int allocate() throws BindException {
+        int words = used.length();
+        int start = ThreadLocalRandom.current().nextInt(words);
+        while (free.get() > 0) {
+            for (int i = 0; i < words; i++) {
+                int word = (start + i) % words;
+                long bits;
+                while ((bits = used.get(word)) != -1L) {
+                    long bit = Long.lowestOneBit(~bits);
+                    if (used.compareAndSet(word, bits, bits | bit)) {
+                        free.decrementAndGet();
+                        return first + word * WORD + Long.numberOfTrailingZeros(bit);
+                    }
+                }
+            }
+        }
+        throw new BindException("No free port for a new connection: all " + count
+                + " ports are in use or in quarantine.");
+    }
+
+    /**
+     * Mark a port as used, e.g. one given to a connection by the application.
+     *
+     * @param port
+     *            the port.
+     * @return true if the port is one of ours and was free, and now belongs
+     *         to the caller, who must give it back.
+     */
+    boolean reserve(int port) {
+        if (port < first || port >= first + count) return false;
+        int word = (port - first) / WORD;
+        long bit = 1L << ((port - first) % WORD);
+        while (true) {
+            long bits = used.get(word);
+            if ((bits & bit) != 0) return false;
+            if (used.compareAndSet(word, bits, bits | bit)) {
+                free.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a port at once.
+     *
+     * @param port
+     *            a port from {@link #allocate()} or {@link #reserve(int)}.
+     */
+    void release(int port) {
+        if (port < first || port >= first + count) return;
+        int word = (port - first) / WORD;
+        long bit = 1L << ((port - first) % WORD);
+        while (true) {
+            long bits = used.get(word);
+            if ((bits & bit) == 0) return;
+            if (used.compareAndSet(word, bits, bits & ~bit)) {
+                free.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Give back a port after the quarantine, see {@link PortAllocator}.
+     *
+     * @param port
+     *            a port from {@link #allocate()} or {@link #reserve(int)}.
+     */
+    void quarantine(final int port) {
+        TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                release(port);
+            }
+        }, quarantine, this);
+    }
+}
@@ -0,0 +1,141 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Comparator;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The data packets received on a connection from the next one expected on,
+ * see {@link AbstractConnection#bufferDataPacket(KtnDatagram)}. The window
+ * covers {@link #SIZE} sequence numbers, and a packet is found by its offset
+ * from the start of the window, i.e. its sequence number minus the next
+ * expected one. <br>
+ * <br>
+ * Which packets have arrived, and which of those have not been taken yet, is
+ * kept as two bitmaps of one bit per offset, and the packets themselves in a
+ * ring of slots. Telling a duplicate from a new packet, finding the packets
+ * that have arrived in sequence, and making the selective ACK bitmap are then
+ * a few bit operations, whatever the number of packets in the window.
+ * Sliding the window is a shift of the bitmaps and a move of the start of the
+ * ring. <br>
+ * <br>
+ * Offsets are distances between sequence numbers, see
+ * {@link AbstractConnection#seqDistance(int, int)}, so the window keeps working
+ * when the sequence numbers start over at 0 on a long-lived connection.
+ * {@link #ORDER} compares sequence numbers the same way. <br>
+ * <br>
+ * Not thread safe; {@link AbstractConnection} uses it while holding its
+ * monitor.
+ */
+class ReplayWindow {
+
+    /** Number of sequence numbers covered, one per bit of a long. */
+    final static int SIZE = Long.SIZE;
+
+    /**
+     * Orders sequence numbers by the order they were sent in, also after they
+     * have started over at 0, see {@link AbstractConnection#seqDistance(int, int)}.
+     */
+    final static Comparator<Integer> ORDER = new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+            return Integer.signum(AbstractConnection.seqDistance(b, a));
+        }
+    };
+
+    /** Bit i is set if the packet at offset i has arrived. */
+    private long received;
+
+    /** Bit i is set if the packet at offset i has arrived and not been taken. */
+    private long untaken;
+
+    /** The packets not yet taken, the one at offset i in slot (head + i) % SIZE. */
+    private final KtnDatagram[] packets = new KtnDatagram[SIZE];
+
+    /** The slot of offset 0. */
+    private int head;
+
+    /**
+     * @param offset
+     *            an offset from 0 to {@link #SIZE} - 1.
+     * @return true if the packet at the offset has arrived, whether or not
+     *         it has been taken.
+     */
+    boolean contains(int offset) {
+        return (received & 1L << offset) != 0;
+    }
+
+    /**
+     * Add a packet that has not arrived before.
+     *
+     * @param offset
+     *            its offset, from 0 to {@link #SIZE} - 1.
+     * @param packet
+     *            the packet.
+     */
+    void put(int offset, KtnDatagram packet) {
+        received |= 1L << offset;
+        untaken |= 1L << offset;
+        packets[(head + offset) % SIZE] = packet;
+    }
+
+    /**
+     * Take the packet with the lowest offset of the packets not taken yet.
+     * It still counts as arrived until the window slides past it, see
+     * {@link #slide()}.
+     *
+     * @return the packet, or null if every packet has been taken.
+     */
+    KtnDatagram take() {
+        if (untaken == 0) return null;
+        int offset = Long.numberOfTrailingZeros(untaken);
+        untaken &= untaken - 1;
+        int slot = (head + offset) % SIZE;
+        KtnDatagram packet = packets[slot];
+        packets[slot] = null;
+        return packet;
+    }
+
+    /**
+     * Slide the window past the packets at its start that have been taken.
+     *
+     * @return the number of sequence numbers the window moved.
+     */
+    int slide() {
+        int moved = Long.numberOfTrailingZeros(~(received & ~untaken));
+        if (moved == SIZE) {
+            received = 0;
+            untaken = 0;
+        }
+        else {
+            received >>>= moved;
+            untaken >>>= moved;
+        }
+        head = (head + moved) % SIZE;
+        return moved;
+    }
+
+    /**
+     * @return the number of packets that have arrived in sequence from
+     *         offset 0, with no gaps.
+     */
+    int inSequence() {
+        return Long.numberOfTrailingZeros(~received);
+    }
+
+    /**
+     * @param offset
+     *            the offset of bit 0, at least 0.
+     * @param bits
+     *            the number of bits wanted, at most 32.
+     * @return the arrived packets from the offset on, as a bitmap.
+     */
+    int bitmap(int offset, int bits) {
+        if (offset >= SIZE) return 0;
+        return (int)(received >>> offset) & (int)((1L << bits) - 1);
+    }
+
+    /** @return the number of packets that have arrived and not been taken. */
+    int untaken() {
+        return Long.bitCount(untaken);
+    }
+}
@@ -0,0 +1,95 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Estimates the round trip time of a connection, and derives the
+ * retransmission timeout (RTO) from it. Uses the smoothed RTT and RTT variance
+ * of Jacobson/Karels (as in RFC 6298), and doubles the timeout for every
+ * retransmission (exponential backoff). <br>
+ * <br>
+ * Callers must follow Karn's rule: only packets that were transmitted exactly
+ * once may be used as samples, as an ACK for a retransmitted packet can not be
+ * matched to a specific transmission.
+ *
+ * @see AbstractConnection#getRetransmitTimeout()
+ */
+public class RttEstimator {
+
+    /** Lowest timeout handed out, in milliseconds. */
+    protected final static int MIN_RTO = 100;
+
+    /** Highest timeout handed out, also the limit for backoff. */
+    protected final static int MAX_RTO = 16000;
+
+    /** Gain for the smoothed RTT. */
+    private final static double ALPHA = 1.0 / 8;
+
+    /** Gain for the RTT variance. */
+    private final static double BETA = 1.0 / 4;
+
+    /** Smoothed round trip time, negative until the first sample. */
+    private double srtt;
+
+    /** Round trip time variance. */
+    private double rttvar;
+
+    /** Current retransmission timeout, including backoff. */
+    private int rto;
+
+    /**
+     * Create an estimator without samples.
+     *
+     * @param initialRto
+     *            the timeout to use until the first sample arrives.
+     */
+    public RttEstimator(int initialRto) {
+        srtt = -1;
+        rttvar = 0;
+        rto = clamp(initialRto);
+    }
+
+    /**
+     * Add a measured round trip time. This also cancels any backoff.
+     *
+     * @param rtt
+     *            time from a packet was sent until its ACK arrived, in
+     *            milliseconds. The packet must only have been sent once.
+     */
+    public synchronized void addSample(long rtt) {
+        if (rtt < 0) return;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        }
+        else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        rto = clamp((int)Math.ceil(srtt + Math.max(1, 4 * rttvar)));
+    }
+
+    /**
+     * Double the timeout. Called when a retransmission timer expires.
+     */
+    public synchronized void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    /** @return the current retransmission timeout in milliseconds. */
+    public synchronized int getRto() {
+        return rto;
+    }
+
+    /** @return the smoothed round trip time, or -1 if there are no samples. */
+    public synchronized double getSmoothedRtt() {
+        return srtt;
+    }
+
+    /** @return the round trip time variance. */
+    public synchronized double getRttVariance() {
+        return rttvar;
+    }
+
+    private static int clamp(int timeout) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, timeout));
+    }
+}
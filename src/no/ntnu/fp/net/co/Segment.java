@@ -0,0 +1,467 @@
+package no.ntnu.fp.net.co;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The payload of a data packet sent by {@link AbstractConnection}: a message
+ * from the application, or a fragment of one, and possibly an ACK for data
+ * received from the other side (a piggybacked ACK). <br>
+ * <br>
+ * Messages longer than {@link AbstractConnection#MAX_FRAGMENT} characters are
+ * split into fragments, each sent in a data packet of its own, with its own
+ * sequence number and checksum. Every fragment but the last is marked as
+ * having more to follow, and the receiver joins fragments in sequence order
+ * until it gets the last one. <br>
+ * <br>
+ * In coalescing mode (see {@link AbstractConnection#setNoDelay(boolean)})
+ * several small messages are sent as one batch, see {@link #join(List, int)}. Every
+ * fragment of a batch is marked as such, so that the receiver can split it
+ * into the messages again. <br>
+ * <br>
+ * The connectionless layer does not keep the ack number of packets that are
+ * not ACKs, so the piggybacked ACK has to travel in the payload, where it is
+ * also covered by the checksum. The fields mean the same as in a standalone
+ * ACK, see {@link AbstractConnection#sendDataAck()}. The payload must be a
+ * String, as the connectionless layer prints every payload as one, so a
+ * segment is sent as a short text header followed by the data, see
+ * {@link #encode()}. <br>
+ * <br>
+ * Binary messages (see {@link AbstractConnection#sendFragmented(ByteBuffer)})
+ * are not serialized: the payload bytes are set directly, starting with
+ * {@link #NULL_OBJECT} so that the connectionless layer prints them as null,
+ * followed by a fixed size binary header and the data, see
+ * {@link #writeTo(KtnDatagram)}. <br>
+ * <br>
+ * Every segment belongs to a logical stream (see {@link ConnectionStream}).
+ * Segments of the main stream, 0, are encoded as before streams existed, and
+ * are put in order by their sequence number. Segments of other streams are
+ * also numbered within their stream, so that the receiver can put each stream
+ * in order on its own: text segments start with "S", the stream, the number
+ * within the stream and a space each, and binary segments carry both numbers
+ * in their header. The end of a stream is a segment of its own, without data.
+ * <br>
+ * <br>
+ * A keepalive probe, and the answer to it, are segments without data on the
+ * main stream, see {@link #probe(boolean)}. They are answered and dropped as
+ * they arrive, and never take part in the ordering of the stream.
+ */
+class Segment {
+
+    /**
+     * First character: the last (or only) fragment, or more to follow, of a
+     * message or of a batch of messages.
+     */
+    private final static char LAST = 'D', MORE = 'M', LAST_OF_BATCH = 'B', MORE_OF_BATCH = 'C';
+
+    /** First character: the end of the stream, see {@link #end()}. */
+    private final static char END = 'E';
+
+    /** First character: a keepalive probe, or the answer to one. */
+    private final static char PROBE = 'K', PROBE_REPLY = 'R';
+
+    /** Starts a text segment that is not on the main stream. */
+    private final static char STREAM = 'S';
+
+    /** Second character: without, or with, an ACK. */
+    private final static char NO_ACK = '-', ACK = 'A';
+
+    /** Separates the fields of the header. */
+    private final static char SEPARATOR = ' ';
+
+    /** Ends the length of each message in a batch. */
+    private final static char LENGTH_END = ':';
+
+    /**
+     * A Java serialization stream holding only a null reference. Starts the
+     * payload of a binary segment, which can then never be mistaken for a
+     * serialized String, and deserializes quietly to null when the
+     * connectionless layer prints the packet.
+     */
+    private final static byte[] NULL_OBJECT = { (byte)0xAC, (byte)0xED, 0x00, 0x05, 0x70 };
+
+    /**
+     * Length of the payload of a binary segment before the data: the
+     * {@link #NULL_OBJECT}, the kind and ACK characters as bytes, the ack
+     * number, the selective ACK bitmap, the stream and the number within the
+     * stream. The ACK fields are always there, so that an ACK can be
+     * piggybacked without copying the data.
+     */
+    final static int BINARY_HEADER = NULL_OBJECT.length + 2 + 4 * 4;
+
+    /** The data of a text segment, null for a binary segment. */
+    private final String data;
+
+    /**
+     * The payload of a binary segment, with room for the header, see
+     * {@link #BINARY_HEADER}. Null for a text segment.
+     */
+    private final byte[] bytes;
+
+    /** True if this is not the last fragment of a message. */
+    private final boolean more;
+
+    /** True if the message is a batch of messages, see {@link #join(List, int)}. */
+    private final boolean batch;
+
+    /** The stream the segment belongs to, 0 for the main stream. */
+    private final int stream;
+
+    /**
+     * The number of the segment within its stream, counting from 0. Not used
+     * on the main stream.
+     */
+    private final int streamSeq;
+
+    /** True if this segment ends its stream, and has no data. */
+    private final boolean end;
+
+    /** {@link #PROBE} or {@link #PROBE_REPLY} for a keepalive segment, else 0. */
+    private final char probe;
+
+    /** True if {@link #ack} and {@link #selective} are set. */
+    private final boolean acking;
+
+    /** Cumulative ack number. */
+    private final int ack;
+
+    /** Selective ACK bitmap, see {@link AbstractConnection#SACK_BITS}. */
+    private final int selective;
+
+    /**
+     * Create a segment without an ACK.
+     *
+     * @param data
+     *            the message, or a fragment of it.
+     * @param more
+     *            true if more fragments of the message follow.
+     * @param batch
+     *            true if the message is a batch of messages.
+     */
+    Segment(String data, boolean more, boolean batch) {
+        this(data, null, more, batch, 0, 0, false, false, 0, 0);
+    }
+
+    /**
+     * Create a binary segment without an ACK.
+     *
+     * @param src
+     *            the message, or a fragment of it, from its position. The
+     *            position is moved past the bytes taken.
+     * @param length
+     *            the number of bytes to take.
+     * @param more
+     *            true if more fragments of the message follow.
+     */
+    Segment(ByteBuffer src, int length, boolean more) {
+        this(null, new byte[BINARY_HEADER + length], more, false, 0, 0, false, false, 0, 0);
+        src.get(bytes, BINARY_HEADER, length);
+    }
+
+    private Segment(String data, byte[] bytes, boolean more, boolean batch, int stream,
+            int streamSeq, boolean end, boolean acking, int ack, int selective) {
+        this(data, bytes, more, batch, stream, streamSeq, end, acking, ack, selective, (char)0);
+    }
+
+    private Segment(String data, byte[] bytes, boolean more, boolean batch, int stream,
+            int streamSeq, boolean end, boolean acking, int ack, int selective, char probe) {
+        this.data = data;
+        this.bytes = bytes;
+        this.more = more;
+        this.batch = batch;
+        this.stream = stream;
+        this.streamSeq = streamSeq;
+        this.end = end;
+        this.acking = acking;
+        this.ack = ack;
+        this.selective = selective;
+        this.probe = probe;
+    }
+
+    /**
+     * @return a segment ending a stream, see {@link #onStream(int, int)}.
+     */
+    static Segment end() {
+        return new Segment("", null, false, false, 0, 0, true, false, 0, 0);
+    }
+
+    /**
+     * @param reply
+     *            true for the answer to a probe.
+     * @return a keepalive probe, see
+     *         {@link AbstractConnection#setKeepAlive(int, int)}, or the answer
+     *         to one.
+     */
+    static Segment probe(boolean reply) {
+        return new Segment("", null, false, false, 0, 0, false, false, 0, 0,
+                reply ? PROBE_REPLY : PROBE);
+    }
+
+    /**
+     * @return a copy of this segment carrying the given ACK.
+     */
+    Segment withAck(int ack, int selective) {
+        return new Segment(data, bytes, more, batch, stream, streamSeq, end, true, ack, selective);
+    }
+
+    /**
+     * @param stream
+     *            a stream other than the main stream.
+     * @param streamSeq
+     *            the number of the segment within the stream.
+     * @return a copy of this segment on the given stream.
+     */
+    Segment onStream(int stream, int streamSeq) {
+        return new Segment(data, bytes, more, batch, stream, streamSeq, end, acking, ack,
+                selective);
+    }
+
+    /**
+     * @return the data of a text segment.
+     */
+    String getData() {
+        return data;
+    }
+
+    boolean isBinary() {
+        return bytes != null;
+    }
+
+    /**
+     * @return the data of a binary segment, without copying it.
+     */
+    ByteBuffer getBytes() {
+        return ByteBuffer.wrap(bytes, BINARY_HEADER, bytes.length - BINARY_HEADER).slice();
+    }
+
+    boolean hasMore() {
+        return more;
+    }
+
+    boolean isBatch() {
+        return batch;
+    }
+
+    int getStream() {
+        return stream;
+    }
+
+    int getStreamSeq() {
+        return streamSeq;
+    }
+
+    boolean isEnd() {
+        return end;
+    }
+
+    /** @return true if this is a keepalive probe or the answer to one. */
+    boolean isKeepAlive() {
+        return probe != 0;
+    }
+
+    /** @return true if this is the answer to a keepalive probe. */
+    boolean isProbeReply() {
+        return probe == PROBE_REPLY;
+    }
+
+    boolean isAcking() {
+        return acking;
+    }
+
+    int getAck() {
+        return ack;
+    }
+
+    int getSelective() {
+        return selective;
+    }
+
+    /**
+     * @return the segment as a packet payload: "D" or "M" (see {@link #more}),
+     *         "B" or "C" for a batch, "E" for the end of a stream, "K" or "R"
+     *         for a keepalive probe or its answer, then "-"
+     *         and the data, or "A", the ack number, the selective ACK bitmap
+     *         and the data, separated by spaces. Preceded by "S", the
+     *         stream, the number within the stream and a space each, if not
+     *         on the main stream.
+     */
+    String encode() {
+        StringBuilder text = new StringBuilder(data.length() + (acking ? 24 : 2)
+                + (stream != 0 ? 24 : 0));
+        if (stream != 0) {
+            text.append(STREAM).append(stream).append(SEPARATOR).append(streamSeq)
+                    .append(SEPARATOR);
+        }
+        text.append(kind());
+        if (!acking) return text.append(NO_ACK).append(data).toString();
+        return text.append(ACK).append(ack).append(SEPARATOR).append(selective)
+                .append(SEPARATOR).append(data).toString();
+    }
+
+    /** @return the first character of the header, see {@link #encode()}. */
+    private char kind() {
+        if (probe != 0) return probe;
+        if (end) return END;
+        return batch ? (more ? MORE_OF_BATCH : LAST_OF_BATCH) : (more ? MORE : LAST);
+    }
+
+    /**
+     * Set the segment as the payload of a data packet: encoded as text by
+     * {@link #encode()}, or for a binary segment, as the bytes given to
+     * {@link #Segment(ByteBuffer, int, boolean)} after a header written into
+     * the space left for it. The checksum is set as well.
+     *
+     * @param packet
+     *            the data packet.
+     */
+    void writeTo(KtnDatagram packet) {
+        if (!isBinary()) {
+            packet.setPayload(encode());
+            return;
+        }
+        ByteBuffer header = ByteBuffer.wrap(bytes);
+        header.put(NULL_OBJECT);
+        header.put((byte)(more ? MORE : LAST)).put((byte)(acking ? ACK : NO_ACK));
+        header.putInt(ack).putInt(selective).putInt(stream).putInt(streamSeq);
+        packet.setPayloadAsBytes(bytes);
+        packet.setChecksum(packet.calculateChecksum());
+    }
+
+    /**
+     * Read the segment in a data packet, written by
+     * {@link #writeTo(KtnDatagram)}.
+     *
+     * @param packet
+     *            a data packet.
+     * @return the segment, or null if the payload is not a segment.
+     */
+    static Segment decode(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload == null || payload.length < NULL_OBJECT.length) return null;
+        for (int i = 0; i < NULL_OBJECT.length; i++) {
+            if (payload[i] != NULL_OBJECT[i]) return decode(packet.getPayload());
+        }
+
+        if (payload.length < BINARY_HEADER) return null;
+        ByteBuffer header = ByteBuffer.wrap(payload, NULL_OBJECT.length, BINARY_HEADER
+                - NULL_OBJECT.length);
+        char kind = (char)header.get();
+        char acking = (char)header.get();
+        if ((kind != LAST && kind != MORE) || (acking != ACK && acking != NO_ACK)) return null;
+        int ack = header.getInt();
+        int selective = header.getInt();
+        int stream = header.getInt();
+        int streamSeq = header.getInt();
+        if (stream < 0 || streamSeq < 0) return null;
+        return new Segment(null, payload, kind == MORE, false, stream, streamSeq, false,
+                acking == ACK, ack, selective);
+    }
+
+    /**
+     * Read a text segment made by {@link #encode()}.
+     *
+     * @param payload
+     *            the payload of a data packet, or the part of a SYN carrying
+     *            the first message.
+     * @return the segment, or null if the payload is not a segment.
+     */
+    static Segment decode(Object payload) {
+        if (!(payload instanceof String) || ((String)payload).length() < 2) return null;
+        String text = (String)payload;
+        int stream = 0;
+        int streamSeq = 0;
+        int start = 0;
+        try {
+            if (text.charAt(0) == STREAM) {
+                int end = text.indexOf(SEPARATOR);
+                start = end < 0 ? 0 : text.indexOf(SEPARATOR, end + 1) + 1;
+                if (start <= 0 || text.length() < start + 2) return null;
+                stream = Integer.parseInt(text.substring(1, end));
+                streamSeq = Integer.parseInt(text.substring(end + 1, start - 1));
+                if (stream <= 0 || streamSeq < 0) return null;
+            }
+
+            char kind = text.charAt(start);
+            if ((kind == PROBE || kind == PROBE_REPLY) && stream == 0 && text.length() == 2) {
+                return text.charAt(1) == NO_ACK ? probe(kind == PROBE_REPLY) : null;
+            }
+            if (kind != LAST && kind != MORE && kind != LAST_OF_BATCH && kind != MORE_OF_BATCH
+                    && (kind != END || stream == 0)) {
+                return null;
+            }
+            boolean more = kind == MORE || kind == MORE_OF_BATCH;
+            boolean batch = kind == LAST_OF_BATCH || kind == MORE_OF_BATCH;
+            if (text.charAt(start + 1) == NO_ACK) {
+                return new Segment(text.substring(start + 2), null, more, batch, stream,
+                        streamSeq, kind == END, false, 0, 0);
+            }
+            if (text.charAt(start + 1) != ACK) return null;
+
+            int end = text.indexOf(SEPARATOR, start);
+            int last = end < 0 ? -1 : text.indexOf(SEPARATOR, end + 1);
+            if (last < 0) return null;
+            int ack = Integer.parseInt(text.substring(start + 2, end));
+            int selective = Integer.parseInt(text.substring(end + 1, last));
+            return new Segment(text.substring(last + 1), null, more, batch, stream, streamSeq,
+                    kind == END, true, ack, selective);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Join several messages into one batch, each message preceded by its
+     * length and a colon.
+     *
+     * @param messages
+     *            the messages, in the order they were sent.
+     * @param length
+     *            the length of the batch, the sum of
+     *            {@link #framedLength(String)} of the messages.
+     * @return the batch.
+     */
+    static String join(List<String> messages, int length) {
+        StringBuilder batch = new StringBuilder(length);
+        for (String message : messages) {
+            batch.append(message.length()).append(LENGTH_END).append(message);
+        }
+        return batch.toString();
+    }
+
+    /**
+     * @return the number of characters the message takes up in a batch.
+     */
+    static int framedLength(String message) {
+        return message.length() + String.valueOf(message.length()).length() + 1;
+    }
+
+    /**
+     * Split a batch made by {@link #join(List, int)} into its messages.
+     *
+     * @param batch
+     *            the batch.
+     * @return the messages, or null if the batch is damaged.
+     */
+    static List<String> split(String batch) {
+        List<String> messages = new ArrayList<String>();
+        int start = 0;
+        while (start < batch.length()) {
+            int end = batch.indexOf(LENGTH_END, start);
+            if (end < 0) return null;
+            try {
+                int length = Integer.parseInt(batch.substring(start, end));
+                if (length < 0 || end + 1 + length > batch.length()) return null;
+                messages.add(batch.substring(end + 1, end + 1 + length));
+                start = end + 1 + length;
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return messages;
+    }
+}
@@ -5,7 +5,6 @@ import java.util.TimerTask;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.co.AbstractConnection;
 
@@ -13,18 +12,24 @@ import no.ntnu.fp.net.co.AbstractConnection;
  * A helper class used when sending datagrams and waiting for ack. The class
  * specifies a TimerTask used in the Timer in the send-method of an
  * Connection-implementation. The class will resend a datagram using a socket at
- * timeout. The datagram and socket are specified in the constructor.
+ * timeout. The datagram and socket are specified in the constructor. <br>
+ * <br>
+ * The connections schedule their SendTimers on the shared {@link TimerWheel}
+ * rather than in a Timer of their own, and send over the {@link Transport} in
+ * use.
  * 
  * @see AbstractConnection#simplySendPacket(KtnDatagram)
+ * @see TimerWheel
  * @see java.util.TimerTask
  * @see java.util.Timer
  * @author Stein Jakob Nordb
  */
 public class SendTimer extends TimerTask {
 
-    private ClSocket socket;
+    private PacketSocket socket;
     private KtnDatagram packet;
     private int tries;
+    private long lastSent;
 
     /**
      * Simple constructor.
@@ -34,12 +39,27 @@ public class SendTimer extends TimerTask {
      * @param packet
      *            - the packet to send if timeout
      */
-    public SendTimer(ClSocket socket, KtnDatagram packet) {
+    public SendTimer(PacketSocket socket, KtnDatagram packet) {
         this.socket = socket;
         this.packet = packet;
         tries = 0;
     }
 
+    /**
+     * @return the number of times the packet has been sent so far.
+     */
+    public int getTries() {
+        return tries;
+    }
+
+    /**
+     * @return the time of the latest send, see
+     *         {@link System#currentTimeMillis()}.
+     */
+    public long getLastSent() {
+        return lastSent;
+    }
+
     /**
      * Perform a packet (re)send. The method will be called upon a timeout from
      * the assosiated timer. If called, it means that a correct ack is not
@@ -49,7 +69,8 @@ public class SendTimer extends TimerTask {
     public void run() {
         try {
             Log.writeToLog(packet, "Sending this datagram (try: " + ++tries + ")", "SendTimer");
-            
+            lastSent = System.currentTimeMillis();
+
             socket.send(packet);
         }
         catch (ClException e) {
@@ -0,0 +1,468 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Keeps track of the data packets a connection has sent but not yet had
+ * acknowledged. Up to {@link #getSize()} packets may be in flight at the same
+ * time, each of them identified by its sequence number. <br>
+ * <br>
+ * Two retransmission strategies are supported, see {@link Mode}. In both modes
+ * ACKs are cumulative: an ACK removes every packet up to and including its ack
+ * number from the window, and also the packets listed in its selective ACK
+ * bitmap, if it has one (see {@link AbstractConnection#sendDataAck()}).
+ * <br>
+ * <br>
+ * Retransmission timeouts come from the connection's {@link RttEstimator}.
+ * ACKs for packets that were sent only once are used as RTT samples (Karn's
+ * rule), and every expired timer backs the timeout off. The timers run on the
+ * shared {@link TimerWheel}, accounted to the owner given to the constructor.
+ * <br>
+ * <br>
+ * A lost packet is usually noticed before its timer expires: the receiver
+ * acks every packet that arrives out of order at once, with the same
+ * cumulative ack number, so {@link #DUPLICATE_ACKS} duplicate ACKs mean that
+ * the packet after the ack number is missing while later ones get through.
+ * It is then retransmitted at once (fast retransmit), without backing off.
+ * <br>
+ * <br>
+ * The number of packets in flight is further limited by a
+ * {@link CongestionController}, which is told about ACKs and losses, so that
+ * the sender slows down when the network drops packets, and by the receive
+ * window carried by the ACKs (see {@link AbstractConnection#RECEIVE_BUFFER}),
+ * so that it slows down when the application at the other side does. While
+ * that window is closed, a single packet is sent as a probe, and
+ * retransmitted with backoff until an ACK opens the window again.
+ *
+ * @see AbstractConnection#sendDataPacketWindowed(KtnDatagram)
+ * @see SendTimer
+ */
+public class SendWindow {
+
+    /**
+     * The retransmission strategies for the window.
+     */
+    public enum Mode {
+        /**
+         * One timer for the oldest unacknowledged packet. When it expires,
+         * every packet still in the window is sent again.
+         */
+        GO_BACK_N,
+        /**
+         * One timer per packet. Only the packets whose own timer expires are
+         * sent again.
+         */
+        SELECTIVE_REPEAT
+    }
+
+    /**
+     * Number of transmissions of a single packet before the window gives up
+     * and reports the connection as broken.
+     */
+    protected final static int MAX_TRIES = 12;
+
+    /**
+     * Number of duplicate ACKs, i.e. ACKs that do not move the cumulative ack
+     * number, after which the packet following the ack number is taken as
+     * lost and retransmitted without waiting for its timer.
+     */
+    protected final static int DUPLICATE_ACKS = 3;
+
+    /** Packets in flight, in the order they were sent. */
+    private Map<Integer, SendTimer> outstanding;
+
+    /** Retransmission timers per packet, only used in SELECTIVE_REPEAT. */
+    private Map<Integer, TimerWheel.Timeout> timeouts;
+
+    /** Retransmission strategy. */
+    private Mode mode;
+
+    /** Sequence number of the last packet added, valid once one has been. */
+    private int newest;
+
+    /** Maximum number of packets in flight. */
+    private int size;
+
+    /** Source of retransmission timeouts, shared with the connection. */
+    private RttEstimator rtt;
+
+    /** Owner of the window's timers on the {@link TimerWheel}. */
+    private Object owner;
+
+    /** Limits the packets in flight below {@link #size}. */
+    private CongestionController controller;
+
+    /**
+     * The number of packets the receiver had room for in the latest ACK, see
+     * {@link AbstractConnection#RECEIVE_BUFFER}. Integer.MAX_VALUE until an
+     * ACK has carried a window.
+     */
+    private int advertised;
+
+    /** The go-back-N timer, only used in {@link Mode#GO_BACK_N}. */
+    private TimerWheel.Timeout goBackTimeout;
+
+    /** The highest cumulative ack number received, valid if {@link #duplicateAcks} >= 0. */
+    private int lastAck;
+
+    /**
+     * Number of ACKs received since {@link #lastAck} moved, -1 before the
+     * first ACK. See {@link #DUPLICATE_ACKS}.
+     */
+    private int duplicateAcks;
+
+    /** Set when a packet has been sent {@link #MAX_TRIES} times without ACK. */
+    private IOException failure;
+
+    /**
+     * Create an empty window.
+     *
+     * @param size
+     *            maximum number of packets in flight, at least 1.
+     * @param mode
+     *            the retransmission strategy.
+     * @param rtt
+     *            the connection's round trip time estimator.
+     * @param owner
+     *            the connection the window's timers are accounted to.
+     * @param controller
+     *            the congestion control of the connection.
+     */
+    public SendWindow(int size, Mode mode, RttEstimator rtt, Object owner,
+            CongestionController controller) {
+        if (size < 1) throw new IllegalArgumentException("Window size must be at least 1.");
+        if (mode == null) throw new IllegalArgumentException("Mode can not be null.");
+        if (controller == null) throw new IllegalArgumentException("Controller can not be null.");
+        this.size = size;
+        this.mode = mode;
+        this.rtt = rtt;
+        this.owner = owner;
+        this.controller = controller;
+        outstanding = new LinkedHashMap<Integer, SendTimer>();
+        timeouts = new HashMap<Integer, TimerWheel.Timeout>();
+        failure = null;
+        duplicateAcks = -1;
+        advertised = Integer.MAX_VALUE;
+    }
+
+    /** @return the maximum number of packets in flight. */
+    public int getSize() {
+        return size;
+    }
+
+    /** @return the retransmission strategy. */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** @return the congestion control of the window. */
+    public synchronized CongestionController getController() {
+        return controller;
+    }
+
+    /**
+     * Replace the congestion control of the window. Packets already in flight
+     * stay in flight.
+     *
+     * @param controller
+     *            the new congestion control.
+     */
+    public synchronized void setController(CongestionController controller) {
+        if (controller == null) throw new IllegalArgumentException("Controller can not be null.");
+        this.controller = controller;
+    }
+
+    /** @return the number of packets sent but not yet acknowledged. */
+    public synchronized int getOutstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * @return true if no more packets may be sent before an ACK arrives:
+     *         either {@link #getSize()} packets, or as many as the
+     *         {@link CongestionController} or the receive window allow (but
+     *         at least the probe of a closed window), are in flight, or the next
+     *         packet would be too far ahead of the oldest one in flight to be
+     *         acknowledged selectively (see {@link AbstractConnection#SACK_BITS}).
+     *         Without the latter, packets selectively acked out of the window
+     *         would let the sender run ahead of a lost packet until the
+     *         receiver could no longer acknowledge what arrives.
+     */
+    public synchronized boolean isFull() {
+        int limit = Math.min(Math.min(size, controller.getWindow()), Math.max(advertised, 1));
+        return outstanding.size() >= limit || isBeyondSackRange();
+    }
+
+    /**
+     * @return true if the next packet would be too far ahead of the oldest
+     *         one in flight to be acknowledged selectively.
+     */
+    private boolean isBeyondSackRange() {
+        if (outstanding.isEmpty()) return false;
+        int oldest = outstanding.keySet().iterator().next();
+        return AbstractConnection.seqDistance(oldest, newest) + 1 > AbstractConnection.SACK_BITS;
+    }
+
+    /** @return true if every packet sent has been acknowledged. */
+    public synchronized boolean isEmpty() {
+        return outstanding.isEmpty();
+    }
+
+    /**
+     * Send a packet and keep it in the window until it is acknowledged. The
+     * packet is sent immediately, and then retransmitted according to the
+     * window's {@link Mode}.
+     *
+     * @param packet
+     *            the data packet to send.
+     * @throws IOException
+     *             if an earlier packet was never acknowledged.
+     * @throws IllegalStateException
+     *             if the window is full. The congestion window and the window
+     *             advertised by the receiver are not checked here, as they
+     *             may shrink on a timeout between {@link #isFull()} and this.
+     */
+    public synchronized void add(KtnDatagram packet) throws IOException {
+        checkFailure();
+        if (outstanding.size() >= size || isBeyondSackRange())
+            throw new IllegalStateException("Send window is full.");
+
+        final int seq = packet.getSeq_nr();
+        final SendTimer sender = new SendTimer(Transport.getCurrent().open(), packet);
+        outstanding.put(seq, sender);
+        newest = seq;
+        sender.run();
+
+        if (mode == Mode.SELECTIVE_REPEAT) {
+            armRetransmit(seq, sender);
+        }
+        else if (goBackTimeout == null) {
+            restartGoBackTimer();
+        }
+    }
+
+    /**
+     * Remove the packets acknowledged by the given ACK from the window: every
+     * packet up to and including the ack number, and those marked in the
+     * selective ACK bitmap in its sequence number field. An ACK for a
+     * sequence number that has not been sent yet is ignored, as its header
+     * must be damaged. <br>
+     * <br>
+     * The receive window of the ACK replaces the one before it. If it opens a
+     * closed window, the oldest packet, the probe, is retransmitted at once.
+     * An ACK that does not move the cumulative ack number counts as a
+     * duplicate, see {@link #DUPLICATE_ACKS}, unless the window is closed.
+     *
+     * @param ack
+     *            a received ACK packet.
+     * @return true if the ACK removed any packets from the window, false if it
+     *         was a duplicate or did not belong to this window.
+     */
+    public synchronized boolean acknowledge(KtnDatagram ack) {
+        int cumulative = ack.getAck();
+        if (!outstanding.isEmpty() && AbstractConnection.seqDistance(newest, cumulative) > 0) {
+            Log.writeToLog(ack, "Ack for a packet not sent, ignored", "SendWindow");
+            return false;
+        }
+        int selective = ack.getSeq_nr() & ((1 << AbstractConnection.SACK_BITS) - 1);
+        int window = (ack.getSeq_nr() >>> AbstractConnection.SACK_BITS) - 1;
+        boolean opened = false;
+        boolean newer = AbstractConnection.seqDistance(lastAck, cumulative) >= 0;
+        if (window >= 0 && (duplicateAcks < 0 || newer)) {
+            opened = advertised == 0 && window > 0;
+            advertised = window;
+        }
+        if (outstanding.isEmpty()) return false;
+        boolean limited = outstanding.size() >= controller.getWindow();
+
+        int acked = 0;
+        long sample = -1;
+        Iterator<Map.Entry<Integer, SendTimer>> iterator = outstanding.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, SendTimer> entry = iterator.next();
+            int seq = entry.getKey();
+            int distance = AbstractConnection.seqDistance(cumulative, seq);
+            int bit = distance - 2;
+            boolean selected = bit >= 0 && bit < AbstractConnection.SACK_BITS
+                    && (selective & (1 << bit)) != 0;
+            if (distance > 0 && !selected) {
+                continue;
+            }
+            iterator.remove();
+            acked++;
+            // Karn's rule: only time packets that were sent once. The packet
+            // sent last is the one that caused this ACK.
+            if (entry.getValue().getTries() == 1) {
+                long elapsed = System.currentTimeMillis() - entry.getValue().getLastSent();
+                if (sample < 0 || elapsed < sample) sample = elapsed;
+            }
+            TimerWheel.Timeout timeout = timeouts.remove(seq);
+            if (timeout != null) timeout.cancel();
+        }
+        countDuplicate(cumulative, window);
+        if (opened) reopened();
+        if (acked == 0) return false;
+        if (sample >= 0) rtt.addSample(sample);
+        if (limited) controller.acked(acked);
+
+        Log.writeToLog(ack, "Window acked " + acked + " up to " + cumulative + ", "
+                + outstanding.size() + " still in flight", "SendWindow");
+        if (mode == Mode.GO_BACK_N) restartGoBackTimer();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Count an ACK towards {@link #DUPLICATE_ACKS}, and retransmit the packet
+     * after its ack number once that many duplicates have arrived. Only done
+     * once per lost packet: if the retransmission is lost too, its timer
+     * takes over.
+     *
+     * @param cumulative
+     *            the ack number of the ACK.
+     * @param window
+     *            the receive window of the ACK, or -1 if it has none.
+     */
+    private void countDuplicate(int cumulative, int window) {
+        if (duplicateAcks < 0 || AbstractConnection.seqDistance(lastAck, cumulative) > 0) {
+            lastAck = cumulative;
+            duplicateAcks = 0;
+            return;
+        }
+        if (cumulative != lastAck || window == 0 || ++duplicateAcks != DUPLICATE_ACKS) return;
+
+        int lost = AbstractConnection.seqAfter(cumulative, 1);
+        SendTimer sender = outstanding.get(lost);
+        if (sender == null || !mayRetransmit(sender)) return;
+        Log.writeToLog("Fast retransmit of " + lost + " after " + DUPLICATE_ACKS
+                + " duplicate ACKs", "SendWindow");
+        controller.lost();
+        sender.run();
+        if (mode == Mode.SELECTIVE_REPEAT) {
+            TimerWheel.Timeout timeout = timeouts.remove(lost);
+            if (timeout != null) timeout.cancel();
+            armRetransmit(lost, sender);
+        }
+        else {
+            restartGoBackTimer();
+        }
+    }
+
+    /**
+     * Retransmit the oldest packet at once, as the receive window has opened
+     * again and it is the probe that was sent while it was closed.
+     */
+    private void reopened() {
+        if (outstanding.isEmpty()) return;
+        int seq = outstanding.keySet().iterator().next();
+        SendTimer sender = outstanding.get(seq);
+        Log.writeToLog("Receive window opened, resending " + seq, "SendWindow");
+        sender.run();
+        if (mode == Mode.SELECTIVE_REPEAT) {
+            TimerWheel.Timeout timeout = timeouts.remove(seq);
+            if (timeout != null) timeout.cancel();
+            armRetransmit(seq, sender);
+        }
+        else {
+            restartGoBackTimer();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Check that no packet has exceeded its number of transmissions.
+     *
+     * @throws IOException
+     *             if a packet was never acknowledged.
+     */
+    public synchronized void checkFailure() throws IOException {
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Stop all retransmissions and forget every packet in flight.
+     */
+    public synchronized void close() {
+        outstanding.clear();
+        for (TimerWheel.Timeout timeout : timeouts.values()) {
+            timeout.cancel();
+        }
+        timeouts.clear();
+        if (goBackTimeout != null) goBackTimeout.cancel();
+        goBackTimeout = null;
+        notifyAll();
+    }
+
+    /**
+     * Called by the timers before every retransmission. Marks the window as
+     * failed once a packet has been sent {@link #MAX_TRIES} times, unless it
+     * is probing a closed receive window: the receiver is then known to be
+     * alive, only slow.
+     */
+    private synchronized boolean mayRetransmit(SendTimer sender) {
+        if (failure != null) return false;
+        if (sender.getTries() >= MAX_TRIES && advertised != 0) {
+            failure = new IOException("No ACK received after " + MAX_TRIES + " transmissions.");
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Schedule the next retransmission of a packet in selective repeat mode,
+     * one retransmission timeout from now.
+     */
+    private void armRetransmit(final int seq, final SendTimer sender) {
+        timeouts.put(seq, TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                synchronized (SendWindow.this) {
+                    if (outstanding.get(seq) != sender || !mayRetransmit(sender)) return;
+                    // Back off once per loss event, i.e. for the oldest packet
+                    // only, and not for every packet in the window.
+                    if (outstanding.keySet().iterator().next() == seq) {
+                        rtt.backoff();
+                        if (advertised != 0) controller.timedOut();
+                    }
+                    sender.run();
+                    armRetransmit(seq, sender);
+                }
+            }
+        }, rtt.getRto(), owner));
+    }
+
+    /**
+     * (Re)start the go-back-N timer so that it expires one retransmission
+     * timeout from now, or stop it if the window is empty.
+     */
+    private void restartGoBackTimer() {
+        if (goBackTimeout != null) goBackTimeout.cancel();
+        goBackTimeout = null;
+        if (outstanding.isEmpty()) return;
+
+        goBackTimeout = TimerWheel.getShared().schedule(new Runnable() {
+            public void run() {
+                synchronized (SendWindow.this) {
+                    if (goBackTimeout == null || goBackTimeout.isPending()) return;
+                    rtt.backoff();
+                    if (advertised != 0) controller.timedOut();
+                    List<SendTimer> resend = new ArrayList<SendTimer>(outstanding.values());
+                    for (SendTimer sender : resend) {
+                        if (!mayRetransmit(sender)) return;
+                        sender.run();
+                    }
+                    restartGoBackTimer();
+                }
+            }
+        }, rtt.getRto(), owner);
+    }
+}
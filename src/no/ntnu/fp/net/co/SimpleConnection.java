@@ -6,40 +6,70 @@
  */
 package no.ntnu.fp.net.co;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UTFDataFormatException;
 import java.net.ConnectException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import no.ntnu.fp.net.co.Connection;
 
 /**
+ * A Connection over TCP. Messages are sent as by
+ * {@link DataOutputStream#writeUTF(String)}: a two byte length and the text.
+ * Binary messages are sent as the length {@link #BINARY}, which writeUTF does
+ * not use here, a four byte length and the bytes.
+ * The socket is an asynchronous channel, so {@link AsyncConnection} is served
+ * by the channel's own completion handlers; the blocking methods wait for the
+ * asynchronous ones.
+ *
  * @author sebjorns
  *
  */
-public class SimpleConnection implements Connection {
+public class SimpleConnection implements AsyncConnection {
+
+  /** Marks a binary message, in place of the length of a text. */
+  private final static int BINARY = 0xffff;
 
-  private Socket mySocket;
-  private DataOutputStream os;
-  private DataInputStream is;
+  private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+  private AsynchronousSocketChannel mySocket;
   private boolean stop = true;
   private int myPort;
 
+  /** The channel allows one read and one write at a time: the last ones started. */
+  private CompletableFuture<?> lastRead = CompletableFuture.completedFuture(null);
+  private CompletableFuture<?> lastWrite = CompletableFuture.completedFuture(null);
+
+  /** A message too long for the buffer given to {@link #receive(ByteBuffer)}, kept for the next read. */
+  private Object unread;
+
   public SimpleConnection(int myPort) {
     this.myPort = myPort;
   }
 	
-  private SimpleConnection(Socket mySocket, int myPort)
-    throws IOException {
+  private SimpleConnection(AsynchronousSocketChannel mySocket, int myPort) {
     this(myPort);
     this.mySocket = mySocket;
-    os = new DataOutputStream(mySocket.getOutputStream());
-    is = new DataInputStream(mySocket.getInputStream());
         
     stop = false;
         
@@ -53,41 +83,112 @@ public class SimpleConnection implements Connection {
     throws IOException, SocketTimeoutException {
 		
     System.out.println("Trying to connect to: "+remoteAddress.getHostAddress()+" : "+remotePort);
-    mySocket = new Socket(remoteAddress,remotePort);
-		
-    os = new DataOutputStream(mySocket.getOutputStream());
-    is = new DataInputStream(mySocket.getInputStream());
+    mySocket = AsynchronousSocketChannel.open();
+    await(mySocket.connect(new InetSocketAddress(remoteAddress,remotePort)));
         
     stop = false;
         
     System.out.println("Connection established!");
   }
 
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#connect(java.net.InetAddress, int, java.lang.String)
+   */
+  public void connect(InetAddress remoteAddress, int remotePort, String firstMessage)
+    throws IOException, SocketTimeoutException {
+    connect(remoteAddress, remotePort);
+    if (firstMessage != null) send(firstMessage);
+  }
+
   /* (non-Javadoc)
    * @see no.ntnu.fp.net.co.Connection#accept(java.net.InetAddress, int)
    */
   public Connection accept()
     throws IOException, SocketTimeoutException {
-		
-    ServerSocket myServerSocket = new ServerSocket(myPort);
-		
-    System.out.println("Serversocket lytter p: " +myServerSocket.getLocalPort() );
-    mySocket = myServerSocket.accept();
-    System.out.println("Fikk en oppkobling p: " +myServerSocket.getLocalPort() );
-	    
-    //skal denne lukkes med en gang? hvis ikke - nr?
-    myServerSocket.close();
+    return await(acceptAsync());
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.AsyncConnection#acceptAsync()
+   */
+  public CompletableFuture<AsyncConnection> acceptAsync() {
+    final CompletableFuture<AsyncConnection> future = new CompletableFuture<AsyncConnection>();
+    final AsynchronousServerSocketChannel myServerSocket;
+    try {
+      myServerSocket = AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(myPort));
+    }
+    catch (IOException e) {
+      future.completeExceptionally(e);
+      return future;
+    }
 
-    return new SimpleConnection(mySocket, myPort);
+    System.out.println("Serversocket lytter p: " +myPort );
+    myServerSocket.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+      public void completed(AsynchronousSocketChannel socket, Void attachment) {
+        System.out.println("Fikk en oppkobling p: " +myPort );
+        closeQuietly(myServerSocket);
+        future.complete(new SimpleConnection(socket, myPort));
+      }
 
+      public void failed(Throwable e, Void attachment) {
+        closeQuietly(myServerSocket);
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
   }
 
   /* (non-Javadoc)
    * @see no.ntnu.fp.net.co.Connection#send(java.lang.String)
    */
   public void send(String msg) throws ConnectException, IOException {
-    os.writeUTF(msg);
+    await(sendAsync(msg));
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.AsyncConnection#sendAsync(java.lang.String)
+   */
+  public CompletableFuture<Void> sendAsync(String msg) {
+    ByteBuffer buffer;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(msg.length() + 2);
+      new DataOutputStream(bytes).writeUTF(msg);
+      if (bytes.size() - 2 == BINARY) throw new UTFDataFormatException("encoded string too long: " + BINARY + " bytes");
+      buffer = ByteBuffer.wrap(bytes.toByteArray());
+    }
+    catch (IOException e) {
+      CompletableFuture<Void> future = new CompletableFuture<Void>();
+      future.completeExceptionally(e);
+      return future;
+    }
+    return write(buffer);
+  }
 
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#send(java.nio.ByteBuffer)
+   */
+  public void send(ByteBuffer msg) throws ConnectException, IOException {
+    ByteBuffer header = ByteBuffer.allocate(6).putShort((short)BINARY).putInt(msg.remaining());
+    header.flip();
+    await(write(header, msg));
+  }
+
+  /**
+   * Write the buffers after the writes already started.
+   */
+  private CompletableFuture<Void> write(final ByteBuffer... buffers) {
+    final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    CompletableFuture<?> previous;
+    synchronized (this) {
+      previous = lastWrite;
+      lastWrite = future;
+    }
+    previous.whenComplete(new BiConsumer<Object, Throwable>() {
+      public void accept(Object result, Throwable e) {
+        new Writer(future).start(buffers);
+      }
+    });
+    return future;
   }
 
   /* (non-Javadoc)
@@ -95,26 +196,252 @@ public class SimpleConnection implements Connection {
    */
   public String receive() throws ConnectException, IOException {
     while (!stop) {
-      String s  = is.readUTF();
+      String s  = await(receiveAsync());
       System.out.println("Received the text: "+s);
       return s;
     }
     throw new IOException("Can't receive. The connection is not established!");
   }
 
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#receive(java.nio.ByteBuffer)
+   */
+  public int receive(ByteBuffer dst) throws ConnectException, IOException {
+    if (stop) throw new IOException("Can't receive. The connection is not established!");
+    return ((ByteBuffer)await(read(dst))).remaining();
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.AsyncConnection#receiveAsync()
+   */
+  public CompletableFuture<String> receiveAsync() {
+    final CompletableFuture<String> future = new CompletableFuture<String>();
+    if (stop) {
+      future.completeExceptionally(new IOException("Can't receive. The connection is not established!"));
+      return future;
+    }
+
+    read(null).whenComplete(new BiConsumer<Object, Throwable>() {
+      public void accept(Object msg, Throwable e) {
+        if (e != null) future.completeExceptionally(e);
+        else future.complete(toText(msg));
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Read the next message after the reads already started.
+   *
+   * @param dst null, or the buffer to put the message in
+   * @return a future completed with the message: a String, or a ByteBuffer
+   *  for a binary message or if dst is given
+   */
+  private CompletableFuture<Object> read(final ByteBuffer dst) {
+    final CompletableFuture<Object> future = new CompletableFuture<Object>();
+    CompletableFuture<?> previous;
+    synchronized (this) {
+      previous = lastRead;
+      lastRead = future;
+    }
+    previous.whenComplete(new BiConsumer<Object, Throwable>() {
+      public void accept(Object result, Throwable e) {
+        new Reader(future, dst).start();
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Reads one message: first its length, then the text or bytes, and
+   * completes the future with it.
+   */
+  private class Reader implements CompletionHandler<Integer, ByteBuffer> {
+
+    private final CompletableFuture<Object> future;
+
+    /** Null, or the buffer to put the message in. */
+    private final ByteBuffer dst;
+
+    /**
+     * What is being read: 0 the length, 1 the length of a binary message, 2
+     * the text, 3 the bytes of a binary message.
+     */
+    private int stage;
+
+    private Reader(CompletableFuture<Object> future, ByteBuffer dst) {
+      this.future = future;
+      this.dst = dst;
+    }
+
+    private void start() {
+      Object msg;
+      synchronized (SimpleConnection.this) {
+        msg = unread;
+        unread = null;
+      }
+      if (msg != null) done(msg);
+      else read(ByteBuffer.allocate(2));
+    }
+
+    private void read(ByteBuffer buffer) {
+      try {
+        if (buffer.hasRemaining()) mySocket.read(buffer, buffer, this);
+        else completed(0, buffer);
+      }
+      catch (RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    }
+
+    public void completed(Integer count, ByteBuffer buffer) {
+      if (count < 0) {
+        future.completeExceptionally(new EOFException("Connection closed by remote instance."));
+      }
+      else if (buffer.hasRemaining()) {
+        read(buffer);
+      }
+      else if (stage == 0 && (buffer.getShort(0) & 0xffff) == BINARY) {
+        stage = 1;
+        read(ByteBuffer.allocate(4));
+      }
+      else if (stage == 0) {
+        stage = 2;
+        ByteBuffer message = ByteBuffer.allocate(2 + (buffer.getShort(0) & 0xffff));
+        message.put(buffer.array());
+        read(message);
+      }
+      else if (stage == 1) {
+        stage = 3;
+        int length = buffer.getInt(0);
+        if (length < 0) future.completeExceptionally(new IOException("Negative message length."));
+        else read(ByteBuffer.allocate(length));
+      }
+      else if (stage == 2) {
+        try {
+          done(new DataInputStream(new ByteArrayInputStream(buffer.array())).readUTF());
+        }
+        catch (IOException e) {
+          future.completeExceptionally(e);
+        }
+      }
+      else {
+        buffer.flip();
+        done(buffer);
+      }
+    }
+
+    public void failed(Throwable e, ByteBuffer buffer) {
+      future.completeExceptionally(e);
+    }
+
+    /**
+     * Complete the future with the message, or put it in dst first.
+     */
+    private void done(Object msg) {
+      if (dst == null) {
+        future.complete(msg);
+        return;
+      }
+      ByteBuffer bytes = toBytes(msg);
+      if (bytes.remaining() > dst.remaining()) {
+        synchronized (SimpleConnection.this) {
+          unread = bytes;
+        }
+        future.completeExceptionally(new BufferOverflowException());
+        return;
+      }
+      dst.put(bytes.duplicate());
+      future.complete(bytes);
+    }
+  }
+
+  /**
+   * Writes all of the buffers, and completes the future.
+   */
+  private class Writer implements CompletionHandler<Long, ByteBuffer[]> {
+
+    private final CompletableFuture<Void> future;
+
+    private Writer(CompletableFuture<Void> future) {
+      this.future = future;
+    }
+
+    private void start(ByteBuffer[] buffers) {
+      try {
+        mySocket.write(buffers, 0, buffers.length, 0, TimeUnit.MILLISECONDS, buffers, this);
+      }
+      catch (RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    }
+
+    public void completed(Long count, ByteBuffer[] buffers) {
+      for (ByteBuffer buffer : buffers) {
+        if (buffer.hasRemaining()) {
+          start(buffers);
+          return;
+        }
+      }
+      future.complete(null);
+    }
+
+    public void failed(Throwable e, ByteBuffer[] buffers) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * @return a message as a String, a binary message decoded as UTF-8.
+   */
+  private static String toText(Object msg) {
+    if (msg instanceof String) return (String)msg;
+    return UTF_8.decode(((ByteBuffer)msg).duplicate()).toString();
+  }
+
+  /**
+   * @return a message as bytes, a String encoded as UTF-8.
+   */
+  private static ByteBuffer toBytes(Object msg) {
+    if (msg instanceof ByteBuffer) return (ByteBuffer)msg;
+    return ByteBuffer.wrap(((String)msg).getBytes(UTF_8));
+  }
+
+  /**
+   * Wait for an asynchronous operation, and throw what it failed with.
+   */
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static void closeQuietly(AsynchronousServerSocketChannel myServerSocket) {
+    try {
+      myServerSocket.close();
+    }
+    catch (IOException e) {
+      System.err.println("Could not close the server socket: " + e);
+    }
+  }
+
   /* (non-Javadoc)
    * @see no.ntnu.fp.net.co.Connection#close()
    */
   public void close() throws IOException {
     //		 clean up:
-    //		 close the output stream
-    //		 close the input stream
-    //		 close the socket
+    //		 close the socket, which fails any read or write in progress
 		
     stop = true;
     try {
-      os.close();
-      is.close();
       mySocket.close();   
     } 
     catch (UnknownHostException e) {
@@ -122,4 +449,20 @@ public class SimpleConnection implements Connection {
     } 
   }
 
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.AsyncConnection#closeAsync()
+   */
+  public CompletableFuture<Void> closeAsync() {
+    // Closing the socket does not block.
+    CompletableFuture<Void> future = new CompletableFuture<Void>();
+    try {
+      close();
+      future.complete(null);
+    }
+    catch (IOException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
 }
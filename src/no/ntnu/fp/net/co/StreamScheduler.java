@@ -0,0 +1,108 @@
+package no.ntnu.fp.net.co;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queues of items waiting to be sent, one queue per logical stream, served in
+ * turn (round robin). The item at the head of the stream whose turn it is is
+ * returned by {@link #peek()}; once one piece of it (a fragment) has been sent,
+ * {@link #advance(boolean)} hands the turn to the next stream. A stream sending
+ * a long message therefore only gets every n-th packet when n streams have
+ * something to send, and a short message on another stream does not wait for
+ * the long one to finish. Items on the same stream are served in the order
+ * they were added. <br>
+ * <br>
+ * Items may be added by any thread. {@link #peek()} and
+ * {@link #advance(boolean)} must only be used by one thread at a time, e.g.
+ * while holding the send lock of the connection.
+ *
+ * @param <T>
+ *            the items, e.g. messages.
+ * @see AbstractConnection#sendQueued(int, String)
+ */
+class StreamScheduler<T> {
+
+    /** The waiting items, per stream. Streams with no items are removed. */
+    private final Map<Integer, LinkedList<T>> queues = new HashMap<Integer, LinkedList<T>>();
+
+    /** Streams with items waiting, the one whose turn it is first. */
+    private final LinkedList<Integer> turns = new LinkedList<Integer>();
+
+    /**
+     * Add an item to the end of the queue for its stream. A stream that had
+     * nothing waiting gets the last turn.
+     *
+     * @param stream
+     *            the stream.
+     * @param item
+     *            the item.
+     */
+    synchronized void add(int stream, T item) {
+        LinkedList<T> queue = queues.get(stream);
+        if (queue == null) {
+            queue = new LinkedList<T>();
+            queues.put(stream, queue);
+            turns.addLast(stream);
+        }
+        queue.addLast(item);
+    }
+
+    /**
+     * @return the first item of the stream whose turn it is, or null if
+     *         nothing is waiting.
+     */
+    synchronized T peek() {
+        if (turns.isEmpty()) return null;
+        return queues.get(turns.getFirst()).getFirst();
+    }
+
+    /**
+     * End the turn of the stream of the item returned by {@link #peek()}. The
+     * stream gets the last turn if it still has items waiting.
+     *
+     * @param done
+     *            true if the item has been sent in full, and is removed.
+     */
+    synchronized void advance(boolean done) {
+        if (turns.isEmpty()) return;
+        Integer stream = turns.removeFirst();
+        LinkedList<T> queue = queues.get(stream);
+        if (done) queue.removeFirst();
+        if (queue.isEmpty()) queues.remove(stream);
+        else turns.addLast(stream);
+    }
+
+    /**
+     * @param stream
+     *            a stream.
+     * @return the last item waiting on the stream, or null if there is none.
+     */
+    synchronized T last(int stream) {
+        LinkedList<T> queue = queues.get(stream);
+        return queue == null ? null : queue.getLast();
+    }
+
+    /** @return true if no items are waiting. */
+    synchronized boolean isEmpty() {
+        return turns.isEmpty();
+    }
+
+    /**
+     * Remove every item.
+     *
+     * @return the items removed, in no particular order.
+     */
+    synchronized List<T> clear() {
+        List<T> items = new ArrayList<T>();
+        for (LinkedList<T> queue : queues.values()) {
+            items.addAll(queue);
+        }
+        queues.clear();
+        turns.clear();
+        return items;
+    }
+}
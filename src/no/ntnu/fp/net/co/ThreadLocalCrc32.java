@@ -0,0 +1,75 @@
+package no.ntnu.fp.net.co;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.Util;
+
+/**
+ * A CRC32 that keeps its state per thread. <br>
+ * <br>
+ * The connectionless layer computes every checksum with the single CRC32 in
+ * {@link Util#crc}: when a payload is set, when a packet is sent, and when
+ * {@link KtnDatagram#calculateChecksum()} is called on a received packet. Each
+ * of these is a reset, an update and a read of that one object, so threads
+ * doing it at the same time, e.g. the {@link PacketDemultiplexer} checking a
+ * received packet while another thread sends, wait for each other's cache
+ * lines and can even get each other's checksum, dropping good packets as
+ * damaged. {@link #install()} replaces that CRC32 with an instance of this
+ * class, which gives every thread a CRC32 of its own. It is called once, when
+ * {@link Transport} is loaded. <br>
+ * <br>
+ * Over {@link Transport#CONNECTIONLESS} the checksum has to stay this CRC32:
+ * the connectionless layer writes the CRC32 of the payload into the checksum
+ * field of every packet it sends, so that is the value a receiver must
+ * compare against. It does not cover the header, so damage to the sequence
+ * and ack numbers, and to the selective ACK bitmap and window packed into
+ * them, goes unnoticed there. The other transports check header and payload
+ * with a CRC32C of their own, see {@link DatagramCodec}. The CRC32 is still
+ * computed when a payload is set, by {@link KtnDatagram#setPayload(java.io.Serializable)}.
+ */
+class ThreadLocalCrc32 extends CRC32 {
+
+    /** The CRC32 of the calling thread. */
+    private final ThreadLocal<CRC32> crc = new ThreadLocal<CRC32>() {
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+
+    /**
+     * Make the connectionless layer use a thread-local CRC32, unless it
+     * already does. Called by {@link Transport} when loaded.
+     */
+    static synchronized void install() {
+        if (!(Util.crc instanceof ThreadLocalCrc32)) Util.crc = new ThreadLocalCrc32();
+    }
+
+    private ThreadLocalCrc32() {
+    }
+
+    public void update(int b) {
+        crc.get().update(b);
+    }
+
+    public void update(byte[] b) {
+        crc.get().update(b, 0, b.length);
+    }
+
+    public void update(byte[] b, int off, int len) {
+        crc.get().update(b, off, len);
+    }
+
+    public void update(ByteBuffer buffer) {
+        crc.get().update(buffer);
+    }
+
+    public void reset() {
+        crc.get().reset();
+    }
+
+    public long getValue() {
+        return crc.get().getValue();
+    }
+}
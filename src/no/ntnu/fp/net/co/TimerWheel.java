@@ -0,0 +1,348 @@
+package no.ntnu.fp.net.co;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.fp.net.admin.Log;
+
+/**
+ * A hashed timing wheel: one daemon thread that runs every timed task of the
+ * connection-oriented layer, instead of a {@link java.util.Timer} (and thread)
+ * per packet. <br>
+ * <br>
+ * Time is divided into ticks of {@link #TICK} milliseconds. A task is put in
+ * the bucket for the tick it expires in, together with the number of full
+ * turns of the wheel left before that. Both scheduling and cancelling are O(1),
+ * and each tick only looks at one bucket. <br>
+ * <br>
+ * The wheel thread only finds the tasks that expire; they run on a fixed
+ * number of worker threads, {@link #WORKERS}, as most of them send packets,
+ * which can block (e.g. on a connect to a peer that does not answer). The
+ * tasks of one owner (typically a connection) run one at a time, in the order
+ * they expired, so an owner never takes more than one worker, and a slow or
+ * dead peer never holds up the timing of the others. Owners with expired tasks
+ * wait in a queue while all the workers are busy. A worker thread is stopped
+ * after a while without tasks.
+ * Every task is also accounted to its owner, see {@link #getPending(Object)}.
+ *
+ * @see SendTimer
+ */
+public class TimerWheel {
+
+    /** Length of a tick in milliseconds; the resolution of the wheel. */
+    public final static int TICK = 5;
+
+    /** Most worker threads running tasks at the same time. */
+    private final static int WORKERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /** Seconds an idle worker thread is kept. */
+    private final static int WORKER_KEEPALIVE = 60;
+
+    /** Number of buckets, a power of two. */
+    private final static int WHEEL_SIZE = 512;
+
+    /** The wheel shared by all connections, created on first use. */
+    private static TimerWheel shared;
+
+    /**
+     * A task scheduled on the wheel. The handle is used to cancel the task
+     * before it runs.
+     */
+    public final class Timeout {
+
+        private final Runnable task;
+        private final Object owner;
+        private int rounds;
+        private int bucket;
+        private Timeout previous, next;
+        private boolean linked;
+
+        private Timeout(Runnable task, Object owner) {
+            this.task = task;
+            this.owner = owner;
+        }
+
+        /**
+         * Cancel the task, unless it has already run.
+         *
+         * @return true if the task was cancelled, false if it has run or was
+         *         cancelled before.
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (!linked) return false;
+                unlink(this);
+                return true;
+            }
+        }
+
+        /** @return true if the task is still waiting to run. */
+        public boolean isPending() {
+            synchronized (TimerWheel.this) {
+                return linked;
+            }
+        }
+    }
+
+    /** Head of the list of tasks in each bucket. */
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+
+    /** Number of pending tasks per owner. */
+    private final Map<Object, Integer> pending = new IdentityHashMap<Object, Integer>();
+
+    /** Number of ticks since the wheel was started. */
+    private long tick;
+
+    /** Runs the expired tasks, see {@link #dispatch(Object, Runnable)}. */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * The expired tasks waiting to run, by owner. An owner is in the map for
+     * as long as a worker is running its tasks.
+     */
+    private final Map<Object, LinkedList<Runnable>> expiredByOwner = new IdentityHashMap<Object, LinkedList<Runnable>>();
+
+    /**
+     * Get the wheel shared by all connections in this process. Its thread is
+     * started the first time this method is called.
+     *
+     * @return the shared wheel.
+     */
+    public static synchronized TimerWheel getShared() {
+        if (shared == null) shared = new TimerWheel("TimerWheel");
+        return shared;
+    }
+
+    /**
+     * Create a wheel and start its thread.
+     *
+     * @param name
+     *            name of the wheel thread.
+     */
+    public TimerWheel(final String name) {
+        tick = 0;
+        workers = new ThreadPoolExecutor(WORKERS, WORKERS, WORKER_KEEPALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread worker = new Worker(task, name + "-worker");
+                        worker.setDaemon(true);
+                        return worker;
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+        Thread worker = new Thread(name) {
+            public void run() {
+                work();
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run a task once, after the given delay. The delay is rounded up to a
+     * whole number of ticks, and is at least one tick.
+     *
+     * @param task
+     *            the task to run.
+     * @param delay
+     *            delay in milliseconds.
+     * @param owner
+     *            the object the task is accounted to, e.g. a connection.
+     * @return a handle that can be used to cancel the task.
+     */
+    public synchronized Timeout schedule(Runnable task, long delay, Object owner) {
+        if (task == null || owner == null) throw new IllegalArgumentException("Task and owner can not be null.");
+
+        long ticks = Math.max(1, (delay + TICK - 1) / TICK);
+        Timeout timeout = new Timeout(task, owner);
+        timeout.rounds = (int)((ticks - 1) / WHEEL_SIZE);
+        timeout.bucket = (int)((tick + ticks) & (WHEEL_SIZE - 1));
+        link(timeout);
+        return timeout;
+    }
+
+    /**
+     * Run a task as soon as a worker is free, after the expired tasks of its
+     * owner that have not run yet. For work that must not wait on the thread
+     * that finds it, e.g. a send, but must keep its order with the timed
+     * tasks of the owner.
+     *
+     * @param task
+     *            the task to run.
+     * @param owner
+     *            the object the task is run in order with, e.g. a connection.
+     */
+    public void execute(Runnable task, Object owner) {
+        if (task == null || owner == null) throw new IllegalArgumentException("Task and owner can not be null.");
+        dispatch(owner, task);
+    }
+
+    /**
+     * @param owner
+     *            the owner given to {@link #schedule(Runnable, long, Object)}.
+     * @return number of tasks scheduled for the owner that have neither run
+     *         nor been cancelled.
+     */
+    public synchronized int getPending(Object owner) {
+        Integer count = pending.get(owner);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return true if the calling thread is running a task of a wheel, so
+     *         that the task can avoid waiting where it would otherwise.
+     */
+    public static boolean inTimedTask() {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    /**
+     * Cancel every pending task of an owner, e.g. when a connection is closed,
+     * as well as those that have expired but not started yet.
+     *
+     * @param owner
+     *            the owner given to {@link #schedule(Runnable, long, Object)}.
+     */
+    public synchronized void cancelAll(Object owner) {
+        synchronized (expiredByOwner) {
+            LinkedList<Runnable> expired = expiredByOwner.get(owner);
+            if (expired != null) expired.clear();
+        }
+        if (!pending.containsKey(owner)) return;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            Timeout timeout = buckets[i];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.owner == owner) unlink(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void link(Timeout timeout) {
+        Timeout head = buckets[timeout.bucket];
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null) head.previous = timeout;
+        buckets[timeout.bucket] = timeout;
+        timeout.linked = true;
+
+        Integer count = pending.get(timeout.owner);
+        pending.put(timeout.owner, count == null ? 1 : count + 1);
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) timeout.previous.next = timeout.next;
+        else buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = timeout.next = null;
+        timeout.linked = false;
+
+        int count = pending.get(timeout.owner) - 1;
+        if (count == 0) pending.remove(timeout.owner);
+        else pending.put(timeout.owner, count);
+    }
+
+    /**
+     * Advance the wheel one bucket per tick, and hand the tasks that expire
+     * to the workers.
+     */
+    private void work() {
+        long start = System.currentTimeMillis();
+        List<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            long sleep;
+            synchronized (this) {
+                sleep = start + (tick + 1) * TICK - System.currentTimeMillis();
+            }
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException e) { /* do nothing */
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                tick++;
+                Timeout timeout = buckets[(int)(tick & (WHEEL_SIZE - 1))];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.rounds == 0) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                    }
+                    else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+            }
+
+            for (Timeout timeout : expired) {
+                dispatch(timeout.owner, timeout.task);
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Run an expired task after the expired tasks of its owner that have not
+     * run yet, queueing the owner for a worker if none is running its tasks.
+     */
+    private void dispatch(final Object owner, Runnable task) {
+        synchronized (expiredByOwner) {
+            LinkedList<Runnable> tasks = expiredByOwner.get(owner);
+            if (tasks != null) {
+                tasks.add(task);
+                return;
+            }
+            tasks = new LinkedList<Runnable>();
+            tasks.add(task);
+            expiredByOwner.put(owner, tasks);
+        }
+        workers.execute(new Runnable() {
+            public void run() {
+                runExpired(owner);
+            }
+        });
+    }
+
+    /** Run the expired tasks of an owner until there are none left. */
+    private void runExpired(Object owner) {
+        while (true) {
+            Runnable task;
+            synchronized (expiredByOwner) {
+                LinkedList<Runnable> tasks = expiredByOwner.get(owner);
+                if (tasks.isEmpty()) {
+                    expiredByOwner.remove(owner);
+                    return;
+                }
+                task = tasks.removeFirst();
+            }
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                Log.writeToLog("Exception in timed task: " + e, "TimerWheel");
+            }
+        }
+    }
+
+    /** A thread running expired tasks, see {@link #inTimedTask()}. */
+    private static class Worker extends Thread {
+
+        Worker(Runnable task, String name) {
+            super(task, name);
+        }
+    }
+}
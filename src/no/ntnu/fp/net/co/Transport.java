@@ -0,0 +1,176 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The layers {@link AbstractConnection} can send its packets over. Both
+ * sides of a connection must use the same one, see
+ * {@link #setCurrent(Transport)}. <br>
+ * <br>
+ * The transport is read from the "transport" element of settings.xml, the
+ * file of {@link Settings}, when this class is loaded; without one it is
+ * {@link #CONNECTIONLESS}. The "legacyCodec" element, true or false, is
+ * given to {@link DatagramCodec#setLegacy(boolean)}. <br>
+ * <br>
+ * Loading this class also makes the connectionless layer compute its
+ * checksums per thread, see {@link ThreadLocalCrc32}. Every connection uses
+ * this class before it sends or receives.
+ *
+ * @see PacketSocket
+ */
+public enum Transport {
+
+    /**
+     * The connectionless layer, {@link ClSocket}, with its emulated loss,
+     * delay and damage of packets. It makes a TCP connection for every
+     * packet: a handshake and a teardown for each.
+     */
+    CONNECTIONLESS {
+        public PacketSocket open() {
+            return new ClPacketSocket();
+        }
+    },
+
+    /**
+     * Persistent TCP channels, kept in a pool by destination and closed when
+     * idle, see {@link ChannelPool} and {@link ChannelListener}. Packets are
+     * written with {@link DatagramCodec}. There is no emulation of errors.
+     */
+    POOLED {
+        public PacketSocket open() {
+            return new PooledSocket();
+        }
+
+        boolean checksPackets() {
+            return true;
+        }
+    },
+
+    /**
+     * UDP datagrams, see {@link DatagramChannelSocket}. Packets are written
+     * with {@link DatagramCodec}, and the network is the only source of
+     * errors.
+     */
+    DATAGRAM {
+        public PacketSocket open() {
+            return new DatagramChannelSocket();
+        }
+
+        boolean checksPackets() {
+            return true;
+        }
+    };
+
+    /** The settings file, see {@link Settings}. */
+    private final static String SETTINGS = "settings.xml";
+
+    /** The transport in use, see {@link #setCurrent(Transport)}. */
+    private static volatile Transport current = fromSettings();
+
+    static {
+        ThreadLocalCrc32.install();
+    }
+
+    /**
+     * @return a socket to send and receive packets over this transport.
+     */
+    public abstract PacketSocket open();
+
+    /**
+     * @return true if the packets received over this transport have been
+     *         checked for damage already, header and payload, so that
+     *         {@link AbstractConnection#deliver(KtnDatagram, boolean)} need
+     *         not check them again; see {@link DatagramCodec}. False for
+     *         {@link #CONNECTIONLESS}, where only the CRC32 of the payload is
+     *         sent, and checked on delivery.
+     */
+    boolean checksPackets() {
+        return false;
+    }
+
+    /**
+     * @return the transport connections send their packets over.
+     */
+    public static Transport getCurrent() {
+        return current;
+    }
+
+    /**
+     * Choose the transport connections send their packets over. Connections
+     * already receiving keep the transport they started with, so this should
+     * be done before making any.
+     *
+     * @param transport
+     *            the transport; {@link #CONNECTIONLESS} by default.
+     */
+    public static void setCurrent(Transport transport) {
+        if (transport == null) throw new IllegalArgumentException("Transport must not be null.");
+        current = transport;
+    }
+
+    /**
+     * Read the transport, and whether packets are written in the legacy
+     * form, from {@link #SETTINGS}.
+     *
+     * @return the transport chosen there, or {@link #CONNECTIONLESS}.
+     */
+    private static Transport fromSettings() {
+        File file = new File(SETTINGS);
+        if (!file.exists()) return CONNECTIONLESS;
+        try {
+            Document doc = new SAXBuilder().build(file);
+            Element root = doc.getRootElement();
+            DatagramCodec.setLegacy(Boolean.valueOf(root.getChildTextTrim("legacyCodec")));
+            String name = root.getChildTextTrim("transport");
+            return name == null || name.length() == 0 ? CONNECTIONLESS : valueOf(name.toUpperCase());
+        }
+        catch (JDOMException e) {
+            Log.writeToLog("Unable to read " + SETTINGS + ": " + e.getMessage(), "Transport");
+        }
+        catch (IOException e) {
+            Log.writeToLog("Unable to read " + SETTINGS + ": " + e.getMessage(), "Transport");
+        }
+        catch (IllegalArgumentException e) {
+            Log.writeToLog("Unknown transport in " + SETTINGS + ", using CONNECTIONLESS",
+                    "Transport");
+        }
+        return CONNECTIONLESS;
+    }
+
+    /** A {@link PacketSocket} that is a {@link ClSocket}. */
+    private static class ClPacketSocket implements PacketSocket {
+
+        private final ClSocket socket = new ClSocket();
+
+        public void send(KtnDatagram packet) throws IOException, ClException {
+            socket.send(packet);
+        }
+
+        public KtnDatagram receive(int port) throws IOException {
+            try {
+                return socket.receive(port);
+            }
+            catch (NullPointerException e) {
+                // ClSocket found no accepted socket after an interrupt, see
+                // PacketDemultiplexer#unstick(). There was no packet.
+                return null;
+            }
+        }
+
+        public void cancelReceive() throws IOException {
+            socket.cancelReceive();
+        }
+    }
+}
@@ -85,8 +85,7 @@ public class ChatClient {
         System.out.println("Logger inn " + username);
         try {
             connection.connect(InetAddress.getByName(addressServer),
-                    port_to_server);
-            connection.send("Hello:" + username);
+                    port_to_server, "Hello:" + username);
             recieveThread = new RecieveThread();
             recieveThread.start();
         } catch (SocketTimeoutException e) {
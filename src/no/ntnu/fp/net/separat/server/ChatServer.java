@@ -12,6 +12,9 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
 
 import javax.swing.JFrame;
 import javax.swing.JList;
@@ -19,6 +22,7 @@ import javax.swing.JOptionPane;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.AsyncConnection;
 import no.ntnu.fp.net.co.Connection;
 import no.ntnu.fp.net.co.ConnectionImpl;
 import no.ntnu.fp.net.co.SimpleConnection;
@@ -33,11 +37,15 @@ public class ChatServer extends JFrame {
 
     public static boolean SIMPLE_CONNECTION = false;
 
-    private Connection server;
+    private AsyncConnection server;
 
     private String addressServer = "localhost";
 
-    private ArrayList users;
+    /**
+     * Logins, logouts and broadcasts change and walk this from different
+     * threads, so it is copied on every change instead of locked.
+     */
+    private List users;
 
     private int listenPort = 4444;
 
@@ -169,35 +177,30 @@ public class ChatServer extends JFrame {
         } catch (UnknownHostException e1) {
             e1.printStackTrace();
         }
-        users = new ArrayList();
+        users = new CopyOnWriteArrayList();
 
         if (SIMPLE_CONNECTION)
             server = new SimpleConnection(listenPort);
-        else
-            server = new ConnectionImpl(listenPort);
+        else {
+            ConnectionImpl impl = new ConnectionImpl(listenPort);
+            // Clients that vanish without logging out are dropped after a
+            // while, through the EOFException in RecieveThread.
+            impl.setKeepAlive(ConnectionImpl.DEFAULT_KEEPALIVE_INTERVAL,
+                              ConnectionImpl.DEFAULT_KEEPALIVE_PROBES);
+            server = impl;
+        }
 
         Thread listener = new Thread() {
 
-            private Connection newConn;
-
-            private String message = "";
-
             public void run() {
                 while (true) {
                     try {
                         DBG("Server lytter p:" + listenPort);
-                        newConn = server.accept();
-                        message = newConn.receive();
-
-                        if (message.substring(0, 6).equals("Hello:")) {
-                            User newUser;
-                            DBG("Fikk inn connection fra: "
-                                    + message.substring(6, message.length()));
-                            users.add(newUser = new User(message.substring(6,
-                                    message.length()), newConn));
-                            broadcast("*: " + message.substring(6, message.length()) + " joined.");
-                            broadcast(getUsers().toString());
-                        }
+                        // Both kinds of connection accept AsyncConnections.
+                        AsyncConnection newConn = (AsyncConnection) server.accept();
+                        // Wait for the login without blocking, so that a
+                        // slow client does not hold up the next accept.
+                        login(newConn);
                     } catch (SocketTimeoutException e) {
 		      DBG("startServer(): Noe gikk galt, forsk igjen.");
 		      e.printStackTrace();
@@ -211,6 +214,31 @@ public class ChatServer extends JFrame {
         listener.start();
     }
 
+    /**
+     * Add the user once the "Hello:" message of a new connection arrives.
+     * This returns at once; the user is added on a thread of the common
+     * pool, since the broadcasts block while they send.
+     */
+    private void login(final AsyncConnection newConn) {
+        newConn.receiveAsync().whenCompleteAsync(new BiConsumer<String, Throwable>() {
+            public void accept(String message, Throwable e) {
+                if (e != null) {
+                    DBG("login(): Noe gikk galt: " + e.getMessage());
+                    e.printStackTrace();
+                    return;
+                }
+                if (message != null && message.startsWith("Hello:")) {
+                    DBG("Fikk inn connection fra: "
+                            + message.substring(6, message.length()));
+                    users.add(new User(message.substring(6,
+                            message.length()), newConn));
+                    broadcast("*: " + message.substring(6, message.length()) + " joined.");
+                    broadcast(getUsers().toString());
+                }
+            }
+        });
+    }
+
     private void newMessage(String message, String from) {
         for (int i = 0; i < users.size(); i++) {
 
@@ -219,8 +247,8 @@ public class ChatServer extends JFrame {
 
     private ArrayList getUsers() {
         ArrayList userList = new ArrayList();
-        for (int i = 0; i < users.size(); i++) {
-            userList.add(((User) users.get(i)).name);
+        for (Iterator iter = users.iterator(); iter.hasNext();) {
+            userList.add(((User) iter.next()).name);
         }
         userlist.setListData(userList.toArray());
         return userList;